@@ -1,6 +1,7 @@
 package client;
 
 import server.FileIdentifier;
+import server.FileMetadata;
 import server.Request;
 import server.Request.RequestType;
 import server.Response;
@@ -8,23 +9,40 @@ import server.Server;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Scanner;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 import static java.net.HttpURLConnection.*;
 
-/** Client class for connecting to the FileServer */
+/** Client class for connecting to the FileServer on "fileserver.port", by default Server.PORT.
+ * GET and STAT requests are sent to a random read replica from "fileserver.replicas",
+ * a comma-separated list of host:port pairs, if any are configured. */
 public class Client {
     private static final String EXPLAIN_RESPONSE = "The response says that";
     private static final Path dataPath = Path.of(System.getProperty("user.dir"),
             "src", "client", "data");
     private final Scanner scanner;
+    private InetSocketAddress serverAddress;
+    private Path localCopy;
     private DataInputStream serverIn;
     private DataOutputStream serverOut;
     private static final Logger logger = Logger.getLogger(Client.class.getName());
+    private static final String CLIENT_ID = System.getProperty("fileserver.clientId");
+    private static final int PORT = Integer.getInteger("fileserver.port", Server.PORT);
+    private static final List<InetSocketAddress> REPLICAS = parseReplicas(System.getProperty("fileserver.replicas", ""));
 
     /** entry point
      * Sleeps for half a second before connecting to allow for server startup during tests. */
@@ -56,16 +74,20 @@ public class Client {
      * Waits for the server to close its side of the connection after sending an EXIT request,
      * or just closes the client connection after sending any other request. */
     void connect() {
-        try (Socket socket = new Socket(InetAddress.getByName(Server.ADDRESS), Server.PORT)) {
+        try (Socket socket = new Socket(InetAddress.getByName(Server.ADDRESS), PORT)) {
+            serverAddress = new InetSocketAddress(socket.getInetAddress(), PORT);
             serverIn = new DataInputStream(socket.getInputStream());
             serverOut = new DataOutputStream(socket.getOutputStream());
             String action;
-            System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file): ");
+            System.out.println("Enter action (1 - get a file, 2 - save a file, 3 - delete a file, 4 - show file info, "
+                    + "5 - update a local copy): ");
             action = scanner.nextLine();
             switch (action) {
                 case "1" -> sendGetRequest();
                 case "2" -> sendPutRequest();
                 case "3" -> sendDeleteRequest();
+                case "4" -> sendStatRequest();
+                case "5" -> sendUpdateRequest();
                 case "exit" -> {
                     serverOut.writeUTF(new Request(RequestType.EXIT).toString());
                     if (serverIn.read() == -1) { socket.close(); }
@@ -92,16 +114,49 @@ public class Client {
             String destName = scanner.nextLine();
             destName = destName.isEmpty() ? srcName : destName;
             Request request = new Request(RequestType.PUT, new FileIdentifier(FileIdentifier.Type.BY_NAME, destName));
-            sendRequest(request, file);
+            if (file.length() > ParallelTransfer.CHUNK_SIZE) {
+                sendParallelPutRequest(request, file);
+            } else {
+                sendRequest(request, file);
+            }
         }
     }
 
+    /** PUT request processing for large files,
+     * which are sent in ranges over several parallel connections instead of the session's connection. */
+    private void sendParallelPutRequest(Request request, File file) throws IOException {
+        logger.info(String.format("Sending %d bytes in ranges of %d bytes over %d streams",
+                file.length(), ParallelTransfer.CHUNK_SIZE, ParallelTransfer.STREAMS));
+        ParallelTransfer transfer = new ParallelTransfer(serverAddress.getAddress(), serverAddress.getPort());
+        Response response = transfer.upload(file, request.getFileIdentifier().value());
+        System.out.println("The request was sent.");
+        handleResponse(request, response);
+    }
+
     /** GET request processing
-     * gathers information regarding the file and initiates sending the request. */
+     * gathers information regarding the file and initiates sending the request.
+     * Only the first range of the file is requested over the session's connection,
+     * the rest of a large file is fetched in parallel once its size is known. */
     private void sendGetRequest() throws IOException {
         FileIdentifier identifier = readIdentifier();
-        Request request = new Request(RequestType.GET, identifier);
-        sendRequest(request, null);
+        Request request = new Request(RequestType.GET, identifier)
+                .withOption(Request.LENGTH, String.valueOf(ParallelTransfer.CHUNK_SIZE));
+        sendReadRequest(request);
+    }
+
+    /** GET request processing for refreshing a file in the data directory;
+     * the checksum of the local copy is sent along, so the file is only transferred if it differs
+     * and then replaces the local copy. */
+    private void sendUpdateRequest() throws IOException {
+        FileIdentifier identifier = readIdentifier();
+        System.out.println("Enter name of the local copy: ");
+        localCopy = dataPath.resolve(scanner.nextLine());
+        Request request = new Request(RequestType.GET, identifier)
+                .withOption(Request.LENGTH, String.valueOf(ParallelTransfer.CHUNK_SIZE));
+        if (Files.isRegularFile(localCopy)) {
+            request.withOption(Request.IF_NONE_MATCH, FileMetadata.checksum(localCopy));
+        }
+        sendReadRequest(request);
     }
 
     /** DELETE request processing
@@ -112,8 +167,16 @@ public class Client {
         sendRequest(request, null);
     }
 
+    /** STAT request processing
+     * gathers information regarding the file and initiates sending the request. */
+    private void sendStatRequest() throws IOException {
+        FileIdentifier identifier = readIdentifier();
+        Request request = new Request(RequestType.STAT, identifier);
+        sendReadRequest(request);
+    }
+
     /** Prompts the user for the information necessary to identify a file;
-     * used for GET and DELETE requests.
+     * used for GET, STAT and DELETE requests.
      * @return id or name of the file wrapped in a FileIdentifier object * */
     private FileIdentifier readIdentifier() {
         System.out.println("Do you want to get the file by identifier or by id (1 - name, 2 - id):");
@@ -135,6 +198,7 @@ public class Client {
      * @param request the request to be sent
      * @param file the file that should be sent with the request, or null otherwise */
     private void sendRequest(Request request, File file) throws IOException {
+        identify(request);
         logger.info("Sending request");
         try {
             serverOut.writeUTF(request.toString());
@@ -155,6 +219,57 @@ public class Client {
         }
     }
 
+    /** Sends a GET or STAT request to the read replicas in random order, and to the server
+     * if none of them is reachable or has the file, e.g. because it was saved only just now
+     * @param request the request to be sent */
+    private void sendReadRequest(Request request) throws IOException {
+        List<InetSocketAddress> replicas = new ArrayList<>(REPLICAS);
+        Collections.shuffle(replicas);
+        for (InetSocketAddress replica : replicas) {
+            try (Socket socket = new Socket(replica.getAddress(), replica.getPort())) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                new DataOutputStream(socket.getOutputStream()).writeUTF(identify(request).toString());
+                Response response = Response.parse(in.readUTF());
+                logger.info("Received response from replica " + replica + ": " + response);
+                if (response.getCode() == HTTP_OK || response.getCode() == HTTP_NOT_MODIFIED) {
+                    serverAddress = replica;
+                    serverIn = in;
+                    System.out.println("The request was sent.");
+                    handleResponse(request, response);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.info("Replica " + replica + " is not available");
+            }
+        }
+        sendRequest(request, null);
+    }
+
+    /** Parses the addresses of read replicas
+     * @param replicas comma-separated list of host:port pairs
+     * @return the addresses of the replicas, skipping invalid ones */
+    private static List<InetSocketAddress> parseReplicas(String replicas) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String replica : replicas.split(",")) {
+            if (replica.isBlank()) { continue; }
+            String[] hostAndPort = replica.trim().split(":", 2);
+            try {
+                addresses.add(new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                logger.warning("Invalid replica address: " + replica);
+            }
+        }
+        return addresses;
+    }
+
+    /** Adds the client id set by "fileserver.clientId", if any, by which the server
+     * rate limits and schedules this client separately from other clients at its address
+     * @param request the request to be sent
+     * @return the same request */
+    static Request identify(Request request) {
+        return CLIENT_ID == null ? request : request.withOption(Request.CLIENT, CLIENT_ID);
+    }
+
     /** Waits for a Response, prints information on the content, and acts upon it if applicable.
      * @param request the request to which the response belongs */
     private void processResponse(Request request) throws IOException {
@@ -165,52 +280,118 @@ public class Client {
             } while (rawResponse.isEmpty());
             Response response = Response.parse(rawResponse);
             logger.info("Received response: " + response);
-            switch (request.getRequestType()){
-                case GET -> {
-                    switch (response.getCode()){
-                        case HTTP_OK -> saveFile();
-                        case HTTP_NOT_FOUND -> System.out.printf("%s this file is not found!%n", EXPLAIN_RESPONSE);
-                        default -> System.out.println("Invalid response");
-                    }
+            handleResponse(request, response);
+        } catch (IOException e) {
+            throw new IOException("Lost connection while reading response");
+        }
+    }
+
+    /** Prints information on the content of a Response, and acts upon it if applicable.
+     * @param request the request to which the response belongs
+     * @param response the received response */
+    private void handleResponse(Request request, Response response) {
+        if (response.getCode() == HTTP_UNAVAILABLE) {
+            System.out.printf("%s the server is busy, try again later!%n", EXPLAIN_RESPONSE);
+            return;
+        }
+        if (response.getCode() == HTTP_BAD_METHOD) {
+            System.out.printf("%s the server is read-only!%n", EXPLAIN_RESPONSE);
+            return;
+        }
+        switch (request.getRequestType()){
+            case GET -> {
+                switch (response.getCode()){
+                    case HTTP_OK -> saveFile(request.getFileIdentifier(), FileMetadata.parse(response.getInfo()));
+                    case HTTP_NOT_MODIFIED -> System.out.printf("%s the file was not modified!%n", EXPLAIN_RESPONSE);
+                    case HTTP_NOT_FOUND -> System.out.printf("%s this file is not found!%n", EXPLAIN_RESPONSE);
+                    default -> System.out.println("Invalid response");
                 }
-                case PUT -> {
-                    switch (response.getCode()){
-                        case HTTP_OK -> System.out.printf("Response says that file is saved! ID = %s%n", response.getInfo());
-                        case HTTP_FORBIDDEN -> System.out.printf("%s file is not saved!%n", EXPLAIN_RESPONSE);
-                        default -> System.out.println("Invalid response");
-                    }
+            }
+            case PUT -> {
+                switch (response.getCode()){
+                    case HTTP_OK -> System.out.printf("Response says that file is saved! ID = %s%n", response.getInfo());
+                    case HTTP_FORBIDDEN -> System.out.printf("%s file is not saved!%n", EXPLAIN_RESPONSE);
+                    default -> System.out.println("Invalid response");
                 }
-                case DELETE -> {
-                    switch (response.getCode()) {
-                        case HTTP_OK -> System.out.printf("%s this file was deleted successfully!%n", EXPLAIN_RESPONSE);
-                        case HTTP_NOT_FOUND -> System.out.printf("%s this file is not found!%n", EXPLAIN_RESPONSE);
-                        default -> System.out.println("Invalid response");
+            }
+            case STAT -> {
+                switch (response.getCode()) {
+                    case HTTP_OK -> {
+                        FileMetadata metadata = FileMetadata.parse(response.getInfo());
+                        System.out.printf("Size: %d bytes%nModified: %s%nChecksum: %s%n", metadata.size(),
+                                metadata.modified() == FileMetadata.UNKNOWN ? "unknown"
+                                        : Instant.ofEpochMilli(metadata.modified()), metadata.checksum());
                     }
+                    case HTTP_NOT_FOUND -> System.out.printf("%s this file is not found!%n", EXPLAIN_RESPONSE);
+                    default -> System.out.println("Invalid response");
                 }
-                default -> System.out.println("Unexpected response for request type " + request.getRequestType());
             }
-        } catch (IOException e) {
-            throw new IOException("Lost connection while reading response");
+            case DELETE -> {
+                switch (response.getCode()) {
+                    case HTTP_OK -> System.out.printf("%s this file was deleted successfully!%n", EXPLAIN_RESPONSE);
+                    case HTTP_NOT_FOUND -> System.out.printf("%s this file is not found!%n", EXPLAIN_RESPONSE);
+                    default -> System.out.println("Invalid response");
+                }
+            }
+            default -> System.out.println("Unexpected response for request type " + request.getRequestType());
         }
     }
 
-    /** Saves a file to cwd/src/client/data as a result of a successful GET request. */
-    private void saveFile() {
-        System.out.println("The file was downloaded! Specify a name for it: ");
-        String fileName = scanner.nextLine();
-        File file = dataPath.resolve(fileName).toFile();
-        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))){
-            int fileLength = serverIn.readInt();
-            logger.info("Reading from DataStream: " + fileLength + " bytes");
-            byte[] buffer = new byte[fileLength];
-            serverIn.readFully(buffer, 0, fileLength);
-            logger.info("Writing to output stream");
-            bos.write(buffer, 0, fileLength);
+    /** Saves a file to cwd/src/client/data as a result of a successful GET request,
+     * replacing the local copy that was updated, or under a name the user chooses.
+     * The contents are written into a temporary file with positional writes, starting with the range
+     * sent over the session's connection; remaining ranges are fetched in parallel.
+     * The file is only kept if it matches the checksum from the response, since the ranges may come
+     * from different servers or from different versions of the file.
+     * @param identifier the identifier of the requested file
+     * @param metadata the metadata of the requested file */
+    private void saveFile(FileIdentifier identifier, FileMetadata metadata) {
+        Path download = null;
+        try {
+            download = Files.createFile(dataPath.resolve("download-" + UUID.randomUUID() + ".part"));
+            try (FileChannel target = FileChannel.open(download, StandardOpenOption.WRITE)) {
+                int rangeLength = serverIn.readInt();
+                logger.info("Reading from DataStream: " + rangeLength + " of " + metadata.size() + " bytes");
+                ParallelTransfer.receive(serverIn, target, 0, rangeLength);
+                if (rangeLength < metadata.size()) {
+                    new ParallelTransfer(serverAddress.getAddress(), serverAddress.getPort())
+                            .download(identifier, target, rangeLength, metadata.size());
+                }
+            }
+            if (!metadata.checksum().equals(FileMetadata.checksum(download))) {
+                System.out.println("The downloaded file doesn't match its checksum, it may have changed meanwhile!");
+                deleteQuietly(download);
+                return;
+            }
+        } catch (IOException e) {
+            logger.warning("IO error: " + e.getMessage());
+            deleteQuietly(download);
+            return;
+        }
+        File file;
+        if (localCopy != null) {
+            file = localCopy.toFile();
+        } else {
+            System.out.println("The file was downloaded! Specify a name for it: ");
+            file = dataPath.resolve(scanner.nextLine()).toFile();
+        }
+        try {
+            Files.move(download, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
             logger.info("Writing done for " + file.getName());
         } catch (IOException e) {
             logger.warning("IO error: " + e.getMessage());
+            deleteQuietly(download);
         }
         System.out.println("File saved on the hard drive!");
     }
+
+    /** Removes a temporary download, if it was created */
+    private void deleteQuietly(Path download) {
+        try {
+            if (download != null) { Files.deleteIfExists(download); }
+        } catch (IOException e) {
+            logger.warning("Could not delete temporary file " + download);
+        }
+    }
 }
 
@@ -0,0 +1,170 @@
+package client;
+
+import server.FileIdentifier;
+import server.Request;
+import server.Request.RequestType;
+import server.Response;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+import static java.net.HttpURLConnection.*;
+
+/** Transfers large files in ranges over several parallel connections.
+ * The server handles a single request per connection, so every range uses a connection of its own;
+ * "fileserver.streams" limits how many of them are open at a time,
+ * "fileserver.chunkSize" sets the size of the ranges. */
+class ParallelTransfer {
+    static final int STREAMS = Integer.getInteger("fileserver.streams", 4);
+    static final int CHUNK_SIZE = Integer.getInteger("fileserver.chunkSize", 8 * 1024 * 1024);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Logger logger = Logger.getLogger(ParallelTransfer.class.getName());
+    private final InetAddress address;
+    private final int port;
+
+    /** Constructor
+     * @param address the address of the FileServer
+     * @param port the port of the FileServer */
+    ParallelTransfer(InetAddress address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /** Uploads a file in ranges; the server stores it once the last range has arrived
+     * @param file the file to be sent
+     * @param destName the name under which the file should be saved on the server
+     * @return the response to the range that completed the upload, or the first failed response */
+    Response upload(File file, String destName) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        long total = file.length();
+        List<Callable<Response>> ranges = new ArrayList<>();
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (long offset = 0; offset < total; offset += CHUNK_SIZE) {
+                long rangeOffset = offset;
+                int rangeLength = (int) Math.min(CHUNK_SIZE, total - offset);
+                ranges.add(() -> uploadRange(source, destName, uploadId, total, rangeOffset, rangeLength));
+            }
+            Response completed = null;
+            for (Response response : runAll(ranges)) {
+                switch (response.getCode()) {
+                    case HTTP_OK -> completed = response;
+                    case HTTP_ACCEPTED -> { }
+                    default -> { return response; }
+                }
+            }
+            if (completed == null) {
+                throw new IOException("Server did not complete upload " + uploadId);
+            }
+            return completed;
+        }
+    }
+
+    /** Downloads ranges of a file and writes each of them into place in the target file
+     * @param identifier the identifier of the file
+     * @param target the channel of the destination file
+     * @param from position of the first byte to be downloaded
+     * @param size the size of the complete file */
+    void download(FileIdentifier identifier, FileChannel target, long from, long size) throws IOException {
+        List<Callable<Response>> ranges = new ArrayList<>();
+        for (long offset = from; offset < size; offset += CHUNK_SIZE) {
+            long rangeOffset = offset;
+            long rangeLength = Math.min(CHUNK_SIZE, size - offset);
+            ranges.add(() -> downloadRange(identifier, target, rangeOffset, rangeLength));
+        }
+        for (Response response : runAll(ranges)) {
+            if (response.getCode() != HTTP_OK) {
+                throw new IOException("Server refused range: " + response);
+            }
+        }
+    }
+
+    /** Copies bytes from a stream into place in a file with positional writes
+     * @param in the stream to read from
+     * @param target the channel of the destination file
+     * @param position the position of the first byte in the file
+     * @param length number of bytes to be copied */
+    static void receive(DataInputStream in, FileChannel target, long position, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Connection closed before range was complete");
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+            while (bytes.hasRemaining()) {
+                position += target.write(bytes, position);
+            }
+            remaining -= read;
+        }
+    }
+
+    private Response uploadRange(FileChannel source, String destName, String uploadId,
+                                 long total, long offset, int length) throws IOException {
+        byte[] range = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(range);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("File was truncated during upload");
+            }
+        }
+        Request request = Client.identify(new Request(RequestType.PUT, new FileIdentifier(FileIdentifier.Type.BY_NAME, destName)))
+                .withOption(Request.UPLOAD, uploadId)
+                .withOption(Request.OFFSET, String.valueOf(offset))
+                .withOption(Request.TOTAL, String.valueOf(total));
+        try (Socket socket = new Socket(address, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(request.toString());
+            out.writeInt(length);
+            out.write(range);
+            out.flush();
+            logger.fine(String.format("Sent range %d-%d", offset, offset + length));
+            return Response.parse(new DataInputStream(socket.getInputStream()).readUTF());
+        }
+    }
+
+    private Response downloadRange(FileIdentifier identifier, FileChannel target, long offset, long length) throws IOException {
+        Request request = Client.identify(new Request(RequestType.GET, identifier))
+                .withOption(Request.OFFSET, String.valueOf(offset))
+                .withOption(Request.LENGTH, String.valueOf(length));
+        try (Socket socket = new Socket(address, port)) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.writeUTF(request.toString());
+            Response response = Response.parse(in.readUTF());
+            if (response.getCode() == HTTP_OK) {
+                receive(in, target, offset, in.readInt());
+                logger.fine(String.format("Received range %d-%d", offset, offset + length));
+            }
+            return response;
+        }
+    }
+
+    /** Runs the transfers of all ranges with at most STREAMS connections at a time */
+    private List<Response> runAll(List<Callable<Response>> ranges) throws IOException {
+        ExecutorService streams = Executors.newFixedThreadPool(STREAMS);
+        try {
+            List<Response> responses = new ArrayList<>();
+            for (Future<Response> future : streams.invokeAll(ranges)) {
+                responses.add(future.get());
+            }
+            return responses;
+        } catch (ExecutionException e) {
+            throw new IOException("Range transfer failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Transfer was interrupted");
+        } finally {
+            streams.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/** Shared queue for storage work of all sessions.
+ * Interactive tasks (GET, STAT, DELETE) are preferred over bulk tasks (PUT),
+ * but every BULK_SHARE-th task is a bulk task if one is waiting, so uploads are not starved.
+ * Within each class, clients take turns in weighted round-robin order:
+ * a client runs up to its weight ("fileserver.weight.<client id>", default 1) tasks per turn,
+ * where the client id is the address or "address/id", see RateLimiter.clientId. */
+class FairScheduler {
+    private static final Logger logger = Logger.getLogger(FairScheduler.class.getName());
+    private static final int BULK_SHARE = 4;
+    private static final int WORKERS = Integer.getInteger("fileserver.workers",
+            Math.max(2, 2 * Runtime.getRuntime().availableProcessors()));
+
+    /** Scheduling classes */
+    enum Priority {INTERACTIVE, BULK}
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition taskAvailable = lock.newCondition();
+    private final Map<Priority, RoundRobin> queues = new EnumMap<>(Priority.class);
+    private int interactiveStreak = 0;
+    private int pending = 0;
+    private long executed = 0;
+    private boolean shutdown = false;
+
+    /** Constructor; starts "fileserver.workers" worker threads */
+    FairScheduler() {
+        this(WORKERS);
+    }
+
+    /** Constructor; starts the worker threads
+     * @param workers number of worker threads */
+    FairScheduler(int workers) {
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new RoundRobin());
+        }
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "storage-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Metrics.gauge("scheduler.pending", this::pendingTasks);
+    }
+
+    /** Queues a task
+     * @param clientId the id of the client the task belongs to
+     * @param priority the scheduling class of the task
+     * @param task the task
+     * @return a future completed with the result of the task */
+    <T> CompletableFuture<T> submit(String clientId, Priority priority, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long queued = System.nanoTime();
+        Runnable runnable = () -> {
+            Metrics.add("scheduler." + priority.name().toLowerCase() + ".waitMillis",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+            try {
+                future.complete(task.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        };
+        lock.lock();
+        try {
+            if (shutdown) {
+                throw new IllegalStateException("Scheduler is shut down");
+            }
+            queues.get(priority).offer(clientId, runnable);
+            pending++;
+            taskAvailable.signal();
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    /** Returns the number of queued tasks that have not been started yet */
+    int pendingTasks() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of tasks started since the scheduler was created */
+    long executedTasks() {
+        lock.lock();
+        try {
+            return executed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops the workers once they finish their current tasks; queued tasks are dropped */
+    void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            taskAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Runnable task;
+            lock.lock();
+            try {
+                while (!shutdown && pending == 0) {
+                    taskAvailable.awaitUninterruptibly();
+                }
+                if (shutdown) { return; }
+                task = next();
+                pending--;
+                executed++;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warning("Storage task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /** Picks the next task; must be called with the lock held and at least one task pending */
+    private Runnable next() {
+        RoundRobin interactive = queues.get(Priority.INTERACTIVE);
+        RoundRobin bulk = queues.get(Priority.BULK);
+        if (!interactive.isEmpty() && (bulk.isEmpty() || interactiveStreak < BULK_SHARE - 1)) {
+            interactiveStreak++;
+            Metrics.increment("scheduler.interactive.executed");
+            return interactive.poll();
+        }
+        interactiveStreak = 0;
+        Metrics.increment("scheduler.bulk.executed");
+        return bulk.poll();
+    }
+
+    /** Per-client task queues of one scheduling class, served in weighted round-robin order */
+    private static class RoundRobin {
+        private final ArrayDeque<ClientQueue> turns = new ArrayDeque<>();
+        private final Map<String, ClientQueue> byClient = new HashMap<>();
+
+        void offer(String clientId, Runnable task) {
+            ClientQueue queue = byClient.computeIfAbsent(clientId, id -> {
+                ClientQueue created = new ClientQueue(id, Integer.getInteger("fileserver.weight." + id, 1));
+                turns.addLast(created);
+                return created;
+            });
+            queue.tasks.addLast(task);
+        }
+
+        boolean isEmpty() {
+            return turns.isEmpty();
+        }
+
+        Runnable poll() {
+            ClientQueue queue = turns.peekFirst();
+            Runnable task = queue.tasks.pollFirst();
+            queue.credits--;
+            if (queue.tasks.isEmpty()) {
+                turns.pollFirst();
+                byClient.remove(queue.clientId);
+            } else if (queue.credits == 0) {
+                queue.credits = queue.weight;
+                turns.addLast(turns.pollFirst());
+            }
+            return task;
+        }
+    }
+
+    /** Tasks of a single client, with the number of tasks it may still run in its current turn */
+    private static class ClientQueue {
+        private final String clientId;
+        private final int weight;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private int credits;
+
+        ClientQueue(String clientId, int weight) {
+            this.clientId = clientId;
+            this.weight = Math.max(1, weight);
+            this.credits = this.weight;
+        }
+    }
+}
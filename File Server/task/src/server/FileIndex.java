@@ -2,6 +2,8 @@ package server;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -13,27 +15,138 @@ class FileIndex implements Serializable {
     private final ConcurrentMap<Integer, String> idToName;
     private final ConcurrentMap<String, Integer> nameToId;
     private final AtomicInteger fileIdCounter;
+    private final ConcurrentMap<Integer, SegmentStore.Location> locations;
+    private final ConcurrentMap<Integer, FileMetadata> metadata;
 
     /** Constructor
      * @param idToName Mapping of file indices to file names
      * @param fileIdCounter the next available index */
     FileIndex(ConcurrentMap<Integer, String> idToName, int fileIdCounter) {
+        this(idToName, fileIdCounter, new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+
+    /** Constructor
+     * @param idToName Mapping of file indices to file names
+     * @param fileIdCounter the next available index
+     * @param locations Mapping of file indices to segment locations of packed files
+     * @param metadata Mapping of file indices to file metadata */
+    FileIndex(ConcurrentMap<Integer, String> idToName, int fileIdCounter,
+              ConcurrentMap<Integer, SegmentStore.Location> locations, ConcurrentMap<Integer, FileMetadata> metadata) {
         this.idToName = idToName;
         this.fileIdCounter = new AtomicInteger(fileIdCounter);
+        this.locations = locations;
+        this.metadata = metadata;
         nameToId = new ConcurrentHashMap<>();
         idToName.forEach((key, value) -> nameToId.put(value, key));
     }
 
+    /** Upgrades indices saved before packed files or metadata were introduced */
+    @Serial
+    private Object readResolve() {
+        if (locations != null && metadata != null) { return this; }
+        return new FileIndex(idToName, fileIdCounter.get(),
+                locations == null ? new ConcurrentHashMap<>() : locations, new ConcurrentHashMap<>());
+    }
+
     /** Adds file to index by file name, and assigns a unique id to it
      * @param name the name of the file
+     * @param location the location of its contents if it is packed, null otherwise
+     * @param fileMetadata the metadata of the file, or null if it is not known
      * @return assigned id for the file */
-    int add(String name) {
+    synchronized int add(String name, SegmentStore.Location location, FileMetadata fileMetadata) {
         int id = fileIdCounter.getAndIncrement();
+        if (location != null) { locations.put(id, location); }
+        if (fileMetadata != null) { metadata.put(id, fileMetadata); }
         nameToId.put(name, id);
         idToName.put(id, name);
         return id;
     }
 
+    /** Adds a file found during recovery, unless a file of that name was added in the meantime
+     * @param name the name of the file
+     * @param location the location of its contents if it is packed, null otherwise
+     * @return assigned id for the file, or -1 if the name is already taken */
+    synchronized int addIfAbsent(String name, SegmentStore.Location location) {
+        if (nameToId.containsKey(name)) { return -1; }
+        return add(name, location, null);
+    }
+
+    /** Adds a file replicated from a primary server under the id assigned there,
+     * replacing any entry with the same name or id
+     * @param id the id of the file
+     * @param name the name of the file
+     * @param location the location of its contents if it is packed, null otherwise
+     * @param fileMetadata the metadata of the file, or null if it is not known */
+    synchronized void put(int id, String name, SegmentStore.Location location, FileMetadata fileMetadata) {
+        if (nameToId.containsKey(name)) { remove(name); }
+        String previous = idToName.get(id);
+        if (previous != null) { remove(previous); }
+        if (location != null) { locations.put(id, location); }
+        if (fileMetadata != null) { metadata.put(id, fileMetadata); }
+        nameToId.put(name, id);
+        idToName.put(id, name);
+        advanceCounter(id + 1);
+    }
+
+    /** Returns the metadata of a file
+     * @param name the name of the file
+     * @return the metadata, or null if it is not known */
+    FileMetadata getMetadata(String name) {
+        Integer id = nameToId.get(name);
+        return id == null ? null : metadata.get(id);
+    }
+
+    /** Records the metadata of a file, unless it was removed in the meantime
+     * @param name the name of the file
+     * @param fileMetadata the metadata of the file */
+    synchronized void setMetadata(String name, FileMetadata fileMetadata) {
+        Integer id = nameToId.get(name);
+        if (id != null) { metadata.put(id, fileMetadata); }
+    }
+
+    /** Makes sure ids below the given value are never assigned, e.g. because they were handed out before
+     * @param nextId the lowest id that may be assigned next */
+    void advanceCounter(int nextId) {
+        fileIdCounter.accumulateAndGet(nextId, Math::max);
+    }
+
+    /** Returns the lowest id that may be assigned next */
+    int nextId() {
+        return fileIdCounter.get();
+    }
+
+    /** Returns the segment location of a file
+     * @param name the name of the file
+     * @return the location if the file is packed, null otherwise */
+    SegmentStore.Location getLocation(String name) {
+        Integer id = nameToId.get(name);
+        return id == null ? null : locations.get(id);
+    }
+
+    /** Moves a packed file to a new location, unless it was changed or removed in the meantime
+     * @param id the id of the file
+     * @param from the expected current location
+     * @param to the new location
+     * @return true if the location was updated, false otherwise */
+    boolean relocate(int id, SegmentStore.Location from, SegmentStore.Location to) {
+        return locations.replace(id, from, to);
+    }
+
+    /** Returns a read-only view of the locations of all packed files by id */
+    Map<Integer, SegmentStore.Location> locations() {
+        return Collections.unmodifiableMap(locations);
+    }
+
+    /** Returns the id of a file by name, or -1 if the name is not in the index */
+    int idOf(String name) {
+        return nameToId.getOrDefault(name, -1);
+    }
+
+    /** Returns the name of a file by id, or null if the id is not in the index */
+    String nameOf(int id) {
+        return idToName.get(id);
+    }
+
     /** Checks for presence of a file
      * @param name the name of the file
      * @return true if file is present in the index, false otherwise */
@@ -56,10 +169,27 @@ class FileIndex implements Serializable {
 
     /** Removes a file from the index
      * @param fileName the name of the file to be removed */
-    void remove(String fileName) {
+    synchronized void remove(String fileName) {
         int id = nameToId.get(fileName);
         nameToId.remove(fileName);
         idToName.remove(id);
+        locations.remove(id);
+        metadata.remove(id);
+    }
+
+    /** Removes a file from the index, unless its id was reassigned in the meantime
+     * @param id the id of the file
+     * @param fileName the name of the file
+     * @return true if the file was removed, false otherwise */
+    synchronized boolean remove(int id, String fileName) {
+        if (!fileName.equals(idToName.get(id))) { return false; }
+        remove(fileName);
+        return true;
+    }
+
+    /** Returns a snapshot of all file names by id */
+    Map<Integer, String> entries() {
+        return Map.copyOf(idToName);
     }
 
     /** Shows content of index for logging purposes */
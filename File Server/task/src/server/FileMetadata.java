@@ -0,0 +1,84 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/** Metadata of a stored file, kept in the FileIndex
+ * @param size the size of the file in bytes
+ * @param modified the time the file was stored, in milliseconds since the epoch, or UNKNOWN
+ * @param checksum the hex-encoded SHA-256 digest of the contents, used as ETag */
+public record FileMetadata(long size, long modified, String checksum) implements Serializable {
+    private static final String ALGORITHM = "SHA-256";
+    /** Modification time of files whose storage time wasn't recorded, e.g. packed files found during recovery */
+    public static final long UNKNOWN = -1;
+
+    /** Creates the metadata for contents that are being stored now
+     * @param content buffer holding the file contents
+     * @param length number of content bytes */
+    static FileMetadata of(byte[] content, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(content, 0, length);
+        return new FileMetadata(length, System.currentTimeMillis(), HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /** Creates the metadata for contents that were stored without it, by reading them
+     * @param content the stored contents
+     * @param modified the time the contents were stored, or UNKNOWN
+     * @throws IOException if the contents can't be read */
+    static FileMetadata of(StoredContent content, long modified) throws IOException {
+        MessageDigest digest = newDigest();
+        try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            content.transferTo(out);
+        }
+        return new FileMetadata(content.length(), modified, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    /** Computes the checksum of a file in the same way as for stored files,
+     * e.g. to check whether a local copy is up to date
+     * @param file the file to be read
+     * @return the hex-encoded checksum
+     * @throws IOException if the file can't be read */
+    public static String checksum(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = Files.newInputStream(file);
+             OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            in.transferTo(out);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** Returns a digest for computing checksums while a file is written */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        }
+    }
+
+    /** Reconstructs metadata from its string-encoded form
+     * @param metadataString the encoded metadata, possibly followed by further info
+     * @return the reconstructed metadata
+     * @throws IllegalArgumentException if the string does not represent valid metadata */
+    public static FileMetadata parse(String metadataString) {
+        String[] parts = metadataString.trim().split(" ");
+        if (parts.length < 3) {
+            throw new IllegalArgumentException("Invalid metadata: " + metadataString);
+        }
+        return new FileMetadata(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+    }
+
+    /** Encodes the metadata as a string for sending or logging */
+    @Override
+    public String toString() {
+        return String.format("%d %d %s", size, modified, checksum);
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Background check that stored contents still match the metadata in the index.
+ * Files are re-read one at a time in id order, at most "fileserver.scrubMBps" MiB per second (0 disables scrubbing),
+ * and their size and checksum are compared with the recorded ones; files without recorded metadata get it recorded.
+ * Mismatching and missing files are quarantined, see Storage.quarantine.
+ * A pass over the index starts every "fileserver.scrubIntervalSeconds".
+ * Scrubbing pauses while foreground requests queue up in the FairScheduler,
+ * or while the scheduler runs more than "fileserver.scrubMaxTasksPerSecond" tasks per second. */
+class IntegrityScrubber {
+    private static final Logger logger = Logger.getLogger(IntegrityScrubber.class.getName());
+    private static final long BYTES_PER_SECOND = Long.getLong("fileserver.scrubMBps", 8) * 1024 * 1024;
+    private static final long INTERVAL_SECONDS = Long.getLong("fileserver.scrubIntervalSeconds", 3600);
+    private static final long MAX_TASKS_PER_SECOND = Long.getLong("fileserver.scrubMaxTasksPerSecond", 20);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long PAUSE_MILLIS = 500;
+    private static final long LOAD_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Storage storage;
+    private final FairScheduler scheduler;
+    private final TokenBucket bucket = new TokenBucket(BYTES_PER_SECOND, CHUNK_SIZE);
+    private long windowStart = System.nanoTime();
+    private long windowTasks = 0;
+    private double tasksPerSecond = 0;
+
+    /** Constructor
+     * @param storage the storage to be checked
+     * @param scheduler the queue for foreground storage work, whose load pauses scrubbing */
+    IntegrityScrubber(Storage storage, FairScheduler scheduler) {
+        this.storage = storage;
+        this.scheduler = scheduler;
+    }
+
+    /** Starts scrubbing in a background thread, unless it is disabled */
+    void start() {
+        if (BYTES_PER_SECOND <= 0) { return; }
+        Thread scrubber = new Thread(() -> {
+            try {
+                while (true) {
+                    TimeUnit.SECONDS.sleep(INTERVAL_SECONDS);
+                    if (!storage.isRecovering()) {
+                        scrubAll();
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.info("Scrubber interrupted.");
+            }
+        }, "integrity-scrubber");
+        scrubber.setDaemon(true);
+        scrubber.setPriority(Thread.MIN_PRIORITY);
+        scrubber.start();
+    }
+
+    /** Checks all files that are in the index when the pass starts */
+    void scrubAll() throws InterruptedException {
+        long start = System.nanoTime();
+        int checked = 0;
+        int quarantined = 0;
+        for (Map.Entry<Integer, String> entry : new TreeMap<>(storage.entries()).entrySet()) {
+            awaitLowLoad();
+            if (!scrub(entry.getKey(), entry.getValue())) { quarantined++; }
+            checked++;
+        }
+        Metrics.increment("scrub.passes");
+        logger.info(String.format("Scrubbed %d files in %d ms, %d quarantined",
+                checked, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), quarantined));
+    }
+
+    /** Checks a single file against its recorded metadata
+     * @return false if the file was quarantined, true otherwise */
+    private boolean scrub(int id, String name) throws InterruptedException {
+        FileMetadata metadata = storage.getRecordedMetadata(name);
+        StoredContent content = storage.getFile(new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id)));
+        if (content == null) {
+            return !mismatch(id, name, metadata, null, "contents are missing");
+        } else if (!content.name().equals(name)) {
+            return true;
+        }
+        String checksum;
+        try {
+            checksum = checksum(content);
+        } catch (IOException e) {
+            return !mismatch(id, name, metadata, content, e.getMessage());
+        }
+        Metrics.increment("scrub.files.verified");
+        if (metadata == null) {
+            try {
+                long modified = storage.modifiedTime(content);
+                storage.recordMetadata(name, new FileMetadata(content.length(), modified, checksum));
+                Metrics.increment("scrub.checksums.recorded");
+            } catch (IOException e) {
+                logger.warning("Could not record metadata of " + name);
+            }
+            return true;
+        } else if (metadata.size() != content.length()) {
+            return !mismatch(id, name, metadata, content,
+                    String.format("size is %d bytes instead of %d", content.length(), metadata.size()));
+        } else if (!metadata.checksum().equals(checksum)) {
+            return !mismatch(id, name, metadata, content, "checksum is " + checksum + " instead of " + metadata.checksum());
+        }
+        return true;
+    }
+
+    /** Quarantines a file whose contents don't match its metadata
+     * @return true if the file was quarantined, false if it was changed or removed in the meantime */
+    private boolean mismatch(int id, String name, FileMetadata metadata, StoredContent content, String reason) {
+        if (!storage.quarantine(id, name, metadata, content)) { return false; }
+        Metrics.increment("scrub.mismatches");
+        logger.warning(String.format("Quarantined file %d (%s): %s", id, name, reason));
+        return true;
+    }
+
+    /** Reads the contents at the scrubbing rate, pausing while foreground load is high
+     * @return the hex-encoded checksum of the contents
+     * @throws IOException if the contents can't be read or are shorter than expected */
+    private String checksum(StoredContent content) throws IOException, InterruptedException {
+        MessageDigest digest = FileMetadata.newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(content.path(), StandardOpenOption.READ)) {
+            long position = content.offset();
+            long end = content.offset() + content.length();
+            while (position < end) {
+                awaitLowLoad();
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, end - position));
+                TimeUnit.NANOSECONDS.sleep(bucket.reserve(buffer.remaining(), Long.MAX_VALUE));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException(String.format("contents end after %d of %d bytes",
+                            position - content.offset(), content.length()));
+                }
+                digest.update(buffer.flip());
+                position += read;
+                Metrics.add("scrub.bytes.read", read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** Waits while foreground requests are queued or were frequent during the last second */
+    private void awaitLowLoad() throws InterruptedException {
+        if (!busy()) { return; }
+        Metrics.increment("scrub.pauses");
+        do {
+            TimeUnit.MILLISECONDS.sleep(PAUSE_MILLIS);
+        } while (busy());
+    }
+
+    private boolean busy() {
+        long now = System.nanoTime();
+        if (now - windowStart >= LOAD_WINDOW_NANOS) {
+            long tasks = scheduler.executedTasks();
+            tasksPerSecond = (double) (tasks - windowTasks) * LOAD_WINDOW_NANOS / (now - windowStart);
+            windowStart = now;
+            windowTasks = tasks;
+        }
+        return scheduler.pendingTasks() > 0 || tasksPerSecond > MAX_TASKS_PER_SECOND;
+    }
+}
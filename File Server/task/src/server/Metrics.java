@@ -0,0 +1,52 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
+
+/** Process-wide counters and gauges, logged periodically by the Server */
+final class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    private Metrics() {}
+
+    /** Increments a counter by one
+     * @param name the name of the counter */
+    static void increment(String name) {
+        add(name, 1);
+    }
+
+    /** Adds a value to a counter
+     * @param name the name of the counter
+     * @param value the value to be added */
+    static void add(String name, long value) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(value);
+    }
+
+    /** Registers a gauge, whose value is read whenever a snapshot is taken
+     * @param name the name of the gauge
+     * @param value supplier of the current value */
+    static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Returns the current value of a counter, or 0 if it was never incremented */
+    static long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /** Shows all counters and gauges for logging purposes */
+    static String snapshot() {
+        String counterValues = counters.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue().sum())
+                .collect(Collectors.joining(", "));
+        String gaugeValues = gauges.entrySet().stream()
+                .map(entry -> entry.getKey() + "=" + entry.getValue().getAsLong())
+                .collect(Collectors.joining(", "));
+        return String.format("counters {%s}, gauges {%s}", counterValues, gaugeValues);
+    }
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Per-client limits on requests per second and bytes per second.
+ * Clients that exceed their request rate are delayed, or rejected if the delay would exceed
+ * "fileserver.maxThrottleMillis"; clients that exceed their byte rate are always delayed.
+ * Limits are set by "fileserver.requestsPerSecond" and "fileserver.bytesPerSecond",
+ * a value of 0 disables the respective limit.
+ * Clients may choose their own ids, up to "fileserver.maxClientIdsPerAddress" per address;
+ * further ids are limited by the address instead. A chosen id is only valid for the address that chose it,
+ * clients are identified as "address/id", so no client can be charged for the requests of another.
+ * The buckets of clients that were idle for a minute, and hence are full again, are forgotten. */
+class RateLimiter {
+    private static final long REQUESTS_PER_SECOND = Long.getLong("fileserver.requestsPerSecond", 50);
+    private static final long BYTES_PER_SECOND = Long.getLong("fileserver.bytesPerSecond", 64L * 1024 * 1024);
+    private static final long MAX_THROTTLE_NANOS = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("fileserver.maxThrottleMillis", 2000));
+    private static final int MAX_IDS_PER_ADDRESS = Integer.getInteger("fileserver.maxClientIdsPerAddress", 16);
+
+    private final long idleNanos;
+    private final ConcurrentMap<String, Limits> clients = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> idsPerAddress = new ConcurrentHashMap<>();
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+    /** Buckets of a single client
+     * @param address the address that chose the client id, or null if the client is limited by its address
+     * @param requests bucket for the request rate
+     * @param bytes bucket for the byte rate
+     * @param lastUse time the buckets were last used, as System.nanoTime */
+    private record Limits(String address, TokenBucket requests, TokenBucket bytes, AtomicLong lastUse) {
+        Limits(String address) {
+            this(address, new TokenBucket(REQUESTS_PER_SECOND, REQUESTS_PER_SECOND),
+                    new TokenBucket(BYTES_PER_SECOND, BYTES_PER_SECOND), new AtomicLong(System.nanoTime()));
+        }
+    }
+
+    /** Constructor; clients idle for a minute are forgotten */
+    RateLimiter() {
+        this(TimeUnit.MINUTES.toNanos(1));
+    }
+
+    /** Constructor
+     * @param idleNanos time after which idle clients are forgotten */
+    RateLimiter(long idleNanos) {
+        this.idleNanos = idleNanos;
+        Metrics.gauge("throttle.clients", clients::size);
+    }
+
+    /** Returns the id by which a client is limited and scheduled
+     * @param address the address the client connects from
+     * @param requestedId the id the client chose, or null
+     * @return the chosen id qualified by the address, or just the address if the client didn't choose one
+     *         or its address already uses too many other ids */
+    String clientId(String address, String requestedId) {
+        evictIdle();
+        if (requestedId == null) { return address; }
+        String clientId = address + "/" + requestedId;
+        if (clients.containsKey(clientId)) { return clientId; }
+        AtomicInteger ids = idsPerAddress.computeIfAbsent(address, a -> new AtomicInteger());
+        if (ids.incrementAndGet() > MAX_IDS_PER_ADDRESS) {
+            ids.decrementAndGet();
+            Metrics.increment("throttle.clientIds.rejected");
+            return address;
+        }
+        if (clients.putIfAbsent(clientId, new Limits(address)) != null) {
+            ids.decrementAndGet();
+        }
+        return clientId;
+    }
+
+    /** Waits until the client may send another request
+     * @param clientId the id of the client
+     * @return true if the request may go ahead, false if it should be rejected */
+    boolean admitRequest(String clientId) throws InterruptedException {
+        if (REQUESTS_PER_SECOND <= 0) { return true; }
+        long waitNanos = limits(clientId).requests().reserve(1, MAX_THROTTLE_NANOS);
+        if (waitNanos < 0) {
+            Metrics.increment("throttle.requests.rejected");
+            return false;
+        }
+        if (waitNanos > 0) {
+            Metrics.increment("throttle.requests.delayed");
+            delay(waitNanos);
+        }
+        return true;
+    }
+
+    /** Waits until the client may transfer the given number of bytes
+     * @param clientId the id of the client
+     * @param bytes number of bytes the client is about to send or receive */
+    void admitBytes(String clientId, long bytes) throws InterruptedException {
+        if (BYTES_PER_SECOND <= 0) { return; }
+        long waitNanos = limits(clientId).bytes().reserve(bytes, Long.MAX_VALUE);
+        if (waitNanos > 0) {
+            Metrics.increment("throttle.bytes.delayed");
+            delay(waitNanos);
+        }
+    }
+
+    private Limits limits(String clientId) {
+        Limits limits = clients.computeIfAbsent(clientId, id -> new Limits(null));
+        limits.lastUse().set(System.nanoTime());
+        return limits;
+    }
+
+    /** Forgets clients that were idle for longer than idleNanos, checking at most once per idleNanos */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        long last = lastEviction.get();
+        if (now - last < idleNanos || !lastEviction.compareAndSet(last, now)) { return; }
+        clients.forEach((id, limits) -> {
+            if (now - limits.lastUse().get() > idleNanos && clients.remove(id, limits) && limits.address() != null) {
+                idsPerAddress.computeIfPresent(limits.address(),
+                        (address, ids) -> ids.decrementAndGet() == 0 ? null : ids);
+            }
+        });
+    }
+
+    private void delay(long waitNanos) throws InterruptedException {
+        Metrics.add("throttle.delayMillis", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/** Keeps the Storage of a follower server in sync with a primary server, see ReplicationPrimary.
+ * Files are stored under the ids the primary assigned, so they can be requested by id from either server.
+ * The replication lag is reported by the gauges "replication.lag.changes", the number of changes
+ * the primary has and the follower doesn't, and "replication.lag.millis", the time since the follower
+ * was last known to be up to date. */
+class ReplicationFollower {
+    private static final Logger logger = Logger.getLogger(ReplicationFollower.class.getName());
+    private static final long RECONNECT_MILLIS = 2000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Storage storage;
+    private final InetSocketAddress primary;
+    private String epoch = "";
+    private volatile long applied = 0;
+    private volatile long primaryHead = 0;
+    private volatile long upToDateMillis = System.currentTimeMillis();
+
+    /** Constructor
+     * @param storage the storage of the follower
+     * @param primary the address at which the primary accepts followers */
+    ReplicationFollower(Storage storage, InetSocketAddress primary) {
+        this.storage = storage;
+        this.primary = primary;
+        Metrics.gauge("replication.lag.changes", () -> Math.max(0, primaryHead - applied));
+        Metrics.gauge("replication.lag.millis", () -> applied >= primaryHead ? 0
+                : System.currentTimeMillis() - upToDateMillis);
+    }
+
+    /** Starts following the primary in a background thread, reconnecting whenever the connection is lost */
+    void start() {
+        Thread follower = new Thread(() -> {
+            while (true) {
+                follow();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /** Applies the stream of a single connection to the primary */
+    private void follow() {
+        try (Socket socket = new Socket(primary.getAddress(), primary.getPort())) {
+            socket.setSoTimeout((int) (10 * ReplicationPrimary.HEARTBEAT_MILLIS));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeUTF(epoch);
+            out.writeLong(applied);
+            out.flush();
+            logger.info("Following primary " + primary);
+            Set<Integer> snapshot = null;
+            String snapshotEpoch = null;
+            long snapshotSeq = 0;
+            while (true) {
+                String[] message = in.readUTF().split(" ", 3);
+                switch (message[0]) {
+                    case "SNAPSHOT" -> {
+                        snapshot = new HashSet<>();
+                        snapshotEpoch = message[1];
+                        snapshotSeq = Long.parseLong(message[2]);
+                        logger.info("Receiving snapshot at " + snapshotSeq);
+                    }
+                    case "FILE" -> {
+                        int id = Integer.parseInt(message[1]);
+                        receiveFile(in, id, message[2]);
+                        if (snapshot != null) { snapshot.add(id); }
+                    }
+                    case "END" -> {
+                        int deleted = storage.retainOnly(snapshot == null ? Set.of() : snapshot);
+                        logger.info(String.format("Applied snapshot of %d files, deleted %d files",
+                                snapshot == null ? 0 : snapshot.size(), deleted));
+                        Metrics.increment("replication.snapshots.applied");
+                        epoch = snapshotEpoch;
+                        applied(snapshotSeq);
+                        snapshot = null;
+                    }
+                    case "PUT" -> {
+                        String[] change = message[2].split(" ", 2);
+                        receiveFile(in, Integer.parseInt(change[0]), change[1]);
+                        applied(Long.parseLong(message[1]));
+                        Metrics.increment("replication.changes.applied");
+                    }
+                    case "DELETE" -> {
+                        String[] change = message[2].split(" ", 2);
+                        storage.deleteFile(new FileIdentifier(FileIdentifier.Type.BY_ID, change[0]));
+                        applied(Long.parseLong(message[1]));
+                        Metrics.increment("replication.changes.applied");
+                    }
+                    case "HEARTBEAT" -> {
+                        primaryHead = Long.parseLong(message[2]);
+                        applied(Long.parseLong(message[1]));
+                    }
+                    default -> throw new IOException("Unexpected replication message: " + message[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warning("Lost connection to primary " + primary + ": " + e);
+        }
+    }
+
+    /** Reads a file into a file in the storage's upload directory and stores it
+     * @param id the id of the file on the primary
+     * @param description the metadata of the file, followed by its name */
+    private void receiveFile(DataInputStream in, int id, String description) throws IOException {
+        String[] parts = description.split(" ", 4);
+        FileMetadata metadata = FileMetadata.parse(description);
+        long length = in.readLong();
+        Path received = storage.createReplicaFile();
+        try {
+            try (OutputStream out = Files.newOutputStream(received)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (long remaining = length; remaining > 0; ) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("Replicated file ends early: " + parts[3]);
+                    }
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            if (!storage.saveReplica(id, parts[3], metadata, received)) {
+                throw new IOException("Could not store replicated file " + parts[3]);
+            }
+        } finally {
+            Files.deleteIfExists(received);
+        }
+    }
+
+    /** Records that all changes up to a sequence number were applied */
+    private void applied(long seq) {
+        applied = seq;
+        if (seq >= primaryHead) {
+            upToDateMillis = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/** Change log of a primary server, from which followers are kept up to date.
+ * Changes are numbered consecutively and kept in a ring of "fileserver.replicationLogSize" entries;
+ * a follower that falls further behind gets a new snapshot instead.
+ * The epoch identifies the log, sequence numbers start over whenever the server restarts. */
+class ReplicationLog {
+    private static final int CAPACITY = Integer.getInteger("fileserver.replicationLogSize", 10_000);
+    private static final int MAX_BATCH = 1000;
+
+    /** Kinds of changes */
+    enum Kind {PUT, DELETE}
+
+    /** A change of the index
+     * @param seq the sequence number of the change
+     * @param kind the kind of change
+     * @param id the id of the changed file
+     * @param name the name of the changed file */
+    record Change(long seq, Kind kind, int id, String name) {}
+
+    private final String epoch = UUID.randomUUID().toString();
+    private final Change[] ring = new Change[Math.max(1, CAPACITY)];
+    private long head = 0;
+
+    /** Returns the id of this log */
+    String epoch() {
+        return epoch;
+    }
+
+    /** Appends a change and wakes up waiting followers
+     * @param kind the kind of change
+     * @param id the id of the changed file
+     * @param name the name of the changed file */
+    synchronized void record(Kind kind, int id, String name) {
+        head++;
+        ring[(int) (head % ring.length)] = new Change(head, kind, id, name);
+        notifyAll();
+    }
+
+    /** Returns the sequence number of the latest change, or 0 if there was none */
+    synchronized long head() {
+        return head;
+    }
+
+    /** Returns the changes following a sequence number, waiting for one if there is none yet
+     * @param seq the sequence number of the last change the follower has
+     * @param timeoutMillis maximum time to wait for a change
+     * @return the following changes in order, which is empty if none arrived in time,
+     *         or null if the changes are no longer in the log */
+    synchronized List<Change> after(long seq, long timeoutMillis) throws InterruptedException {
+        if (seq > head || seq < head - ring.length) { return null; }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long remaining = timeoutMillis;
+        while (seq == head && remaining > 0) {
+            wait(remaining);
+            remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        }
+        if (seq < head - ring.length) { return null; }
+        List<Change> changes = new ArrayList<>();
+        for (long next = seq + 1; next <= head && changes.size() < MAX_BATCH; next++) {
+            changes.add(ring[(int) (next % ring.length)]);
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/** Streams the contents of the Storage to follower servers.
+ * A follower sends the epoch and sequence number of the last change it has, or an empty epoch.
+ * If the log still holds the following changes, only those are sent, otherwise a snapshot of all files comes first:
+ * <pre>
+ * SNAPSHOT epoch seq                    the snapshot reflects all changes up to seq
+ * FILE id size modified checksum name   followed by the file, as long length and bytes
+ * END
+ * PUT seq id size modified checksum name   followed by the file, as long length and bytes
+ * DELETE seq id name
+ * HEARTBEAT seq head                    all changes up to seq were sent, the latest change is head
+ * </pre>
+ * A heartbeat follows every batch of changes and is repeated every HEARTBEAT_MILLIS while nothing changes. */
+class ReplicationPrimary {
+    private static final Logger logger = Logger.getLogger(ReplicationPrimary.class.getName());
+    static final long HEARTBEAT_MILLIS = 1000;
+
+    private final Storage storage;
+    private final ReplicationLog log;
+    private final int port;
+    private final AtomicInteger followers = new AtomicInteger();
+
+    /** Constructor
+     * @param storage the storage whose contents are replicated
+     * @param log the log of changes of the storage
+     * @param port the port followers connect to */
+    ReplicationPrimary(Storage storage, ReplicationLog log, int port) {
+        this.storage = storage;
+        this.log = log;
+        this.port = port;
+        Metrics.gauge("replication.followers", followers::get);
+    }
+
+    /** Starts accepting followers in a background thread */
+    void start() {
+        Thread listener = new Thread(this::listen, "replication-listener");
+        listener.setDaemon(true);
+        listener.start();
+    }
+
+    private void listen() {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(Server.ADDRESS))) {
+            logger.info("Accepting followers on port " + port);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            }
+        } catch (IOException e) {
+            logger.severe("Could not accept followers on port " + port);
+        }
+    }
+
+    /** Streams changes to a single follower until it disconnects */
+    private void serve(Socket socket) {
+        followers.incrementAndGet();
+        try (socket) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String epoch = in.readUTF();
+            long seq = in.readLong();
+            logger.info(String.format("Follower %s connected at %s %d", socket.getRemoteSocketAddress(), epoch, seq));
+            List<ReplicationLog.Change> changes = log.epoch().equals(epoch) ? log.after(seq, 0) : null;
+            while (true) {
+                if (changes == null) {
+                    seq = sendSnapshot(out);
+                } else {
+                    for (ReplicationLog.Change change : changes) {
+                        sendChange(out, change);
+                        seq = change.seq();
+                    }
+                }
+                out.writeUTF(String.format("HEARTBEAT %d %d", seq, log.head()));
+                out.flush();
+                changes = log.after(seq, HEARTBEAT_MILLIS);
+            }
+        } catch (IOException e) {
+            logger.info("Follower disconnected: " + socket.getRemoteSocketAddress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.decrementAndGet();
+        }
+    }
+
+    /** Sends all files; changes made while the snapshot is taken are sent again afterwards
+     * @return the sequence number of the last change the snapshot certainly reflects */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long seq = log.head();
+        out.writeUTF(String.format("SNAPSHOT %s %d", log.epoch(), seq));
+        int sent = 0;
+        for (Map.Entry<Integer, String> entry : storage.entries().entrySet()) {
+            if (sendFile(out, "FILE " + entry.getKey(), entry.getKey(), entry.getValue())) { sent++; }
+        }
+        out.writeUTF("END");
+        Metrics.increment("replication.snapshots.sent");
+        logger.info(String.format("Sent snapshot of %d files at %d", sent, seq));
+        return seq;
+    }
+
+    private void sendChange(DataOutputStream out, ReplicationLog.Change change) throws IOException {
+        switch (change.kind()) {
+            case PUT -> sendFile(out, String.format("PUT %d %d", change.seq(), change.id()), change.id(), change.name());
+            case DELETE -> out.writeUTF(String.format("DELETE %d %d %s", change.seq(), change.id(), change.name()));
+        }
+        Metrics.increment("replication.changes.sent");
+    }
+
+    /** Sends a file with its metadata, unless it was deleted or replaced in the meantime;
+     * that change follows later in the log
+     * @return true if the file was sent, false otherwise */
+    private boolean sendFile(DataOutputStream out, String header, int id, String name) throws IOException {
+        FileIdentifier identifier = new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id));
+        FileMetadata metadata = storage.getMetadata(identifier);
+        StoredContent content = storage.getFile(identifier);
+        if (metadata == null || content == null || !content.name().equals(name)) { return false; }
+        out.writeUTF(String.format("%s %s %s", header, metadata, name));
+        out.writeLong(content.length());
+        content.transferTo(out);
+        return true;
+    }
+}
@@ -1,16 +1,34 @@
 package server;
 
-/** Wrapper class for Requests, containing RequestType and FileIdentifier, if applicable */
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Wrapper class for Requests, containing RequestType and FileIdentifier, if applicable,
+ * as well as optional key=value options */
 public final class Request {
+    /** Option for GET requests: checksum of the copy the client already has */
+    public static final String IF_NONE_MATCH = "if-none-match";
+    /** Option for GET and ranged PUT requests: position of the requested or sent range in the file */
+    public static final String OFFSET = "offset";
+    /** Option for GET requests: maximum number of bytes to be sent */
+    public static final String LENGTH = "length";
+    /** Option for ranged PUT requests: id the client chose for the upload, shared by all of its ranges */
+    public static final String UPLOAD = "upload";
+    /** Option for ranged PUT requests: size of the complete file */
+    public static final String TOTAL = "total";
+    /** Option for all requests: id by which the server rate limits and schedules the client,
+     * instead of its address */
+    public static final String CLIENT = "client";
     private final RequestType requestType;
     private FileIdentifier fileIdentifier = null;
+    private final Map<String, String> options = new LinkedHashMap<>();
 
     /** Constructor for EXIT requests */
     public Request(RequestType requestType) {
         this.requestType = requestType;
     }
 
-    /** constructor for PUT, GET and DELETE requests */
+    /** constructor for PUT, GET, STAT and DELETE requests */
     public Request(RequestType requestType, FileIdentifier fileIdentifier) {
         this.requestType = requestType;
         this.fileIdentifier = fileIdentifier;
@@ -30,6 +48,7 @@ public final class Request {
                 case GET -> buildRequest(RequestType.GET, parts[1]);
                 case PUT -> buildRequest(RequestType.PUT, parts[1]);
                 case DELETE -> buildRequest(RequestType.DELETE, parts[1]);
+                case STAT -> buildRequest(RequestType.STAT, parts[1]);
             };
         } catch (IllegalArgumentException e) {
             throw new IllegalArgumentException("Invalid request: " + requestString);
@@ -38,23 +57,44 @@ public final class Request {
 
     /** Helper function for reconstructing Requests that contain a FileIdentifier
      * @param requestType the request type
-     * @param identifierString the string-encoded FileIdentifier, e.g. "BY_ID 2" or "BY_NAME awesome.jpg"
+     * @param identifierString the string-encoded FileIdentifier, e.g. "BY_ID 2" or "BY_NAME awesome.jpg",
+     *                         optionally followed by options, e.g. "BY_ID 2 if-none-match=9f86d0"
      * @return the reconstructed Request
      */
     private static Request buildRequest(RequestType requestType, String identifierString) {
         String[] parts = identifierString.split(" ");
-        if (parts.length != 2) {
+        if (parts.length < 2) {
             throw new IllegalArgumentException("Invalid arguments: " + identifierString);
         }
         FileIdentifier.Type identifierType = FileIdentifier.Type.valueOf(parts[0].toUpperCase());
         String value = parts[1];
-        return new Request(requestType, new FileIdentifier(identifierType, value));
+        Request request = new Request(requestType, new FileIdentifier(identifierType, value));
+        for (int i = 2; i < parts.length; i++) {
+            String[] option = parts[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Invalid option: " + parts[i]);
+            }
+            request.withOption(option[0], option[1]);
+        }
+        return request;
+    }
+
+    /** Adds an option to the request
+     * @param key the name of the option
+     * @param value the value of the option, which must not contain spaces
+     * @return this request */
+    public Request withOption(String key, String value) {
+        options.put(key, value);
+        return this;
     }
 
     /** Encodes the Request as a string for sending or logging */
     @Override
     public String toString() {
-        return fileIdentifier == null ? requestType.name() : String.format("%s %s", requestType.name(), fileIdentifier);
+        StringBuilder encoded = new StringBuilder(fileIdentifier == null ? requestType.name()
+                : String.format("%s %s", requestType.name(), fileIdentifier));
+        options.forEach((key, value) -> encoded.append(' ').append(key).append('=').append(value));
+        return encoded.toString();
     }
 
     /** Returns the RequestType */
@@ -67,6 +107,11 @@ public final class Request {
         return fileIdentifier;
     }
 
+    /** Returns the value of an option, or null if it is not set */
+    public String getOption(String key) {
+        return options.get(key);
+    }
+
     /** Enum class of implemented RequestTypes */
-    public enum RequestType {GET, PUT, DELETE, EXIT}
+    public enum RequestType {GET, PUT, DELETE, STAT, EXIT}
 }
@@ -1,17 +1,15 @@
 package server;
 
-
-import java.io.File;
-
 /** Wrapper class for response code, additional String-encoded info (=file index) and file, if applicable */
 public final class Response {
     private final int code;
     private final String info;
-    private File file = null;
+    private StoredContent content = null;
 
     /** Constructor for responses without attached files
      * @param code Response code (corresponding to java.net.HttpURLConnection codes)
-     * @param info additional info: index of a saved file is response to GET request, empty string otherwise
+     * @param info additional info: index of a saved file in response to PUT request,
+     *             file metadata in response to GET and STAT requests, empty string otherwise
      */
     Response(int code, String info) {
         this.code = code;
@@ -20,13 +18,13 @@ public final class Response {
 
     /** Constructor for responses with attached files
      * @param code Response code (corresponding to java.net.HttpURLConnection codes)
-     * @param info additional info: index of a saved file is response to GET request, empty string otherwise
-     * @param file the file that is going to be sent back
+     * @param info additional info: file metadata in response to GET request
+     * @param content the contents of the file that is going to be sent back
      */
-    Response(int code, String info, File file) {
+    Response(int code, String info, StoredContent content) {
         this.code = code;
         this.info = info;
-        this.file = file;
+        this.content = content;
     }
 
     /** Reconstructs a string-encoded response
@@ -42,8 +40,8 @@ public final class Response {
     /** Encodes the response as a string for sending or logging */
     @Override
     public String toString() {
-        return file == null ? String.format("%d %s", code, info)
-                : String.format("%d %s %s", code, info, file.getName());
+        return content == null ? String.format("%d %s", code, info)
+                : String.format("%d %s %s", code, info, content.name());
     }
 
 
@@ -52,13 +50,13 @@ public final class Response {
         return code;
     }
 
-    /** Returns file index as string or empty string */
+    /** Returns file index or file metadata as string, or empty string */
     public String getInfo() {
         return info;
     }
 
-    /** Returns the attached File object that is going to be attached */
-    public File getFile() {
-        return file;
+    /** Returns the contents of the file that is going to be attached */
+    StoredContent getContent() {
+        return content;
     }
 }
@@ -0,0 +1,280 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/** Append-only segment files holding packed small files.
+ * Each record consists of the UTF-encoded file name, the content length and the content.
+ * Deletes append a tombstone record (length -1) and only count the old record as dead;
+ * segments with mostly dead records are rewritten by compaction and removed afterwards.
+ * Compaction carries tombstones over while older segments may still hold records they delete. */
+class SegmentStore {
+    private static final Logger logger = Logger.getLogger(SegmentStore.class.getName());
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".seg";
+    static final int TOMBSTONE = -1;
+    private static final double COMPACTION_RATIO = 0.5;
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final ConcurrentMap<Integer, AtomicLong> deadBytes = new ConcurrentHashMap<>();
+    private final Set<Integer> retired = ConcurrentHashMap.newKeySet();
+    private int activeId;
+    private FileChannel active;
+
+    /** Position of a packed file within the segments
+     * @param segmentId the id of the segment holding the record
+     * @param offset position of the first content byte in the segment
+     * @param length number of content bytes */
+    record Location(int segmentId, long offset, int length) implements Serializable {}
+
+    /** Constructor; opens the newest segment in the directory for appending
+     * @param directory the directory holding the segment files
+     * @param maxSegmentSize size after which a new segment is started
+     * @throws IOException if the directory or the active segment can't be opened */
+    SegmentStore(Path directory, long maxSegmentSize) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(directory);
+        activeId = segmentIds().stream().mapToInt(Integer::intValue).max().orElse(0);
+        active = open(activeId);
+    }
+
+    /** Appends a file to the active segment
+     * @param name the name of the file
+     * @param content buffer holding the file contents
+     * @param length number of bytes to be written
+     * @return the location of the written contents */
+    synchronized Location append(String name, byte[] content, int length) throws IOException {
+        if (active.size() >= maxSegmentSize) {
+            roll();
+        }
+        ByteBuffer header = header(name, length);
+        long start = active.size();
+        writeFully(header, ByteBuffer.wrap(content, 0, length));
+        return new Location(activeId, start + header.capacity(), length);
+    }
+
+    /** Appends a tombstone for a deleted file and accounts its old record as dead
+     * @param name the name of the deleted file
+     * @param location the location of the deleted contents */
+    synchronized void tombstone(String name, Location location) throws IOException {
+        ByteBuffer header = header(name, TOMBSTONE);
+        writeFully(header);
+        markDead(activeId, header.capacity());
+        markDead(location.segmentId(), recordSize(name, location));
+    }
+
+    /** Appends a copy of a tombstone from a segment that is about to be compacted.
+     * The copy is not counted as dead, as it is needed as long as the deleted record exists.
+     * @param name the name of the deleted file */
+    synchronized void copyTombstone(String name) throws IOException {
+        writeFully(header(name, TOMBSTONE));
+    }
+
+    /** Returns a read handle for packed contents
+     * @param name the name of the file
+     * @param location the location of the contents */
+    StoredContent content(String name, Location location) {
+        return new StoredContent(name, segmentPath(location.segmentId()), location.offset(), location.length());
+    }
+
+    /** Copies a record from a segment that is about to be compacted into the active segment
+     * @param name the name of the file
+     * @param location its current location
+     * @return the new location of the contents */
+    Location relocate(String name, Location location) throws IOException {
+        byte[] content = new byte[location.length()];
+        try (FileChannel channel = FileChannel.open(segmentPath(location.segmentId()), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset() + buffer.position()) < 0) {
+                    throw new IOException("Segment record is truncated: " + name);
+                }
+            }
+        }
+        return append(name, content, location.length());
+    }
+
+    /** Reads all records of a segment in the order they were written.
+     * A truncated record at the end of the segment, e.g. from an interrupted write, ends the scan.
+     * @param segmentId the id of the segment
+     * @param visitor called with the file name and the location of its contents, or null for tombstones
+     * @param end position at which the scan stops */
+    void scan(int segmentId, BiConsumer<String, Location> visitor, long end) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmentPath(segmentId))))) {
+            long position = 0;
+            while (position < end) {
+                String name;
+                int length;
+                try {
+                    name = in.readUTF();
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                position += header(name, length).capacity();
+                if (length == TOMBSTONE) {
+                    visitor.accept(name, null);
+                    continue;
+                }
+                try {
+                    in.skipNBytes(length);
+                } catch (EOFException e) {
+                    logger.warning(String.format("Segment %d ends with a truncated record for %s", segmentId, name));
+                    break;
+                }
+                visitor.accept(name, new Location(segmentId, position, length));
+                position += length;
+            }
+        }
+    }
+
+    /** Returns the current end of the active segment */
+    synchronized Location tail() throws IOException {
+        return new Location(activeId, active.size(), 0);
+    }
+
+    /** Checks that a location lies within an existing segment
+     * @param location the location of packed contents
+     * @return true if the segment holds the complete contents, false otherwise */
+    boolean isValid(Location location) {
+        Path segment = segmentPath(location.segmentId());
+        try {
+            return !retired.contains(location.segmentId())
+                    && location.offset() + location.length() <= Files.size(segment);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Initializes dead byte counts, as everything not referenced by the index is dead
+     * @param liveBytes sizes of live records per segment */
+    void initDeadBytes(Map<Integer, Long> liveBytes) throws IOException {
+        for (int segmentId : segmentIds()) {
+            long size = Files.size(segmentPath(segmentId));
+            deadBytes.put(segmentId, new AtomicLong(size - liveBytes.getOrDefault(segmentId, 0L)));
+        }
+    }
+
+    /** Returns the inactive segments that mostly consist of dead records */
+    List<Integer> compactionCandidates() throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        for (int segmentId : segmentIds()) {
+            if (segmentId == activeId || retired.contains(segmentId)) { continue; }
+            long size = Files.size(segmentPath(segmentId));
+            long dead = deadBytes.getOrDefault(segmentId, new AtomicLong()).get();
+            if (size == 0 || dead >= size * COMPACTION_RATIO) {
+                candidates.add(segmentId);
+            }
+        }
+        return candidates;
+    }
+
+    /** Marks a compacted segment for removal.
+     * The file is only deleted on the next compaction pass, so that pending reads can still finish. */
+    void retire(int segmentId) {
+        retired.add(segmentId);
+    }
+
+    /** Deletes all segments retired in a previous compaction pass */
+    void deleteRetired() {
+        for (int segmentId : Set.copyOf(retired)) {
+            try {
+                Files.deleteIfExists(segmentPath(segmentId));
+                deadBytes.remove(segmentId);
+                retired.remove(segmentId);
+                logger.info("Deleted compacted segment " + segmentId);
+            } catch (IOException e) {
+                logger.warning("Could not delete compacted segment " + segmentId);
+            }
+        }
+    }
+
+    /** Flushes the active segment to disk */
+    synchronized void sync() throws IOException {
+        active.force(false);
+    }
+
+    /** Returns the size of a complete record on disk
+     * @param name the name of the file
+     * @param location the location of its contents */
+    static long recordSize(String name, Location location) {
+        return header(name, location.length()).capacity() + (long) location.length();
+    }
+
+    /** Lists the ids of all segments in the directory */
+    Set<Integer> segmentIds() throws IOException {
+        Set<Integer> ids = new HashSet<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                    .forEach(name -> ids.add(Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))));
+        }
+        return ids;
+    }
+
+    private Path segmentPath(int segmentId) {
+        return directory.resolve(String.format("%s%06d%s", PREFIX, segmentId, SUFFIX));
+    }
+
+    private FileChannel open(int segmentId) throws IOException {
+        FileChannel channel = FileChannel.open(segmentPath(segmentId), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /** Closes the active segment and starts a new one */
+    private void roll() throws IOException {
+        active.force(false);
+        active.close();
+        activeId++;
+        active = open(activeId);
+        logger.info("Started new segment " + activeId);
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) { remaining += buffer.remaining(); }
+        while (remaining > 0) {
+            remaining -= active.write(buffers);
+        }
+    }
+
+    private void markDead(int segmentId, long bytes) {
+        deadBytes.computeIfAbsent(segmentId, id -> new AtomicLong()).addAndGet(bytes);
+    }
+
+    /** Encodes the record header: the file name and the content length or TOMBSTONE */
+    private static ByteBuffer header(String name, int length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeUTF(name);
+            out.writeInt(length);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't encode record header for " + name);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -3,15 +3,29 @@ package server;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.*;
 
 
+/** FileServer accepting client connections on "fileserver.port", by default PORT.
+ * With "fileserver.replicationPort" set, it streams its changes to followers connecting to that port;
+ * with "fileserver.primary" set to the host:port of such a primary, it is a read-only follower. */
 public class Server {
     public static final String ADDRESS = "127.0.0.1";
     public static final int PORT = 23456;
+    private static final int port = Integer.getInteger("fileserver.port", PORT);
+    private static final Integer replicationPort = Integer.getInteger("fileserver.replicationPort");
+    private static final String primary = System.getProperty("fileserver.primary");
+    private static final long METRICS_INTERVAL_SECONDS = Long.getLong("fileserver.metricsIntervalSeconds", 60);
     private static Storage fileStorage;
+    private final FairScheduler scheduler = new FairScheduler();
+    private final RateLimiter rateLimiter = new RateLimiter();
     static final Logger logger = Logger.getLogger(Server.class.getName());
     static {
         logger.setLevel(Level.ALL);
@@ -22,35 +36,88 @@ public class Server {
         server.start();
     }
 
+    /** Accepts client connections and runs their sessions concurrently,
+     * until a client requests the server to exit */
     void start() {
         initStorage();
+        startReplication();
+        new IntegrityScrubber(fileStorage, scheduler).start();
+        startMetricsLog();
         System.out.println("Server started!");
-        try (ServerSocket serverSocket = new ServerSocket(PORT, 50, InetAddress.getByName(ADDRESS))) {
-            boolean exitServer = false;
-            while (!exitServer) {
-                try (Socket socket = serverSocket.accept()) {
-                    Session session = new Session(socket);
-                    exitServer = session.startLifecycle();
-                    logger.info("Session disconnected!");
+        ExecutorService sessions = Executors.newCachedThreadPool();
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(ADDRESS))) {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    sessions.submit(() -> runSession(socket, serverSocket));
                 }
                 catch (IOException e) {
-                    logger.info("Client connection was closed");
+                    if (!serverSocket.isClosed()) {
+                        logger.info("Client connection was closed");
+                    }
                 }
             }
         } catch (IOException e) {
-            logger.severe("Server couldn't listen on port " + PORT);
+            logger.severe("Server couldn't listen on port " + port);
         } finally {
+            sessions.shutdownNow();
             shutdown();
         }
     }
 
+    /** Runs a single session and stops accepting connections if the client requested the server to exit
+     * @param socket the socket by which the client is connected
+     * @param serverSocket the socket accepting client connections */
+    private void runSession(Socket socket, ServerSocket serverSocket) {
+        try (socket) {
+            Session session = new Session(socket, scheduler, rateLimiter, primary != null);
+            if (session.startLifecycle()) {
+                serverSocket.close();
+            }
+            logger.info("Session disconnected!");
+        }
+        catch (IOException e) {
+            logger.info("Client connection was closed");
+        }
+    }
+
     private void initStorage() {
         fileStorage = Storage.getInstance();
         logger.info("Storage initialized: " + fileStorage.showIndex());
     }
 
+    /** Starts streaming changes to followers and following a primary, as configured */
+    private void startReplication() {
+        if (replicationPort != null) {
+            new ReplicationPrimary(fileStorage, fileStorage.enableReplication(), replicationPort).start();
+        }
+        if (primary != null) {
+            String[] hostAndPort = primary.split(":", 2);
+            try {
+                new ReplicationFollower(fileStorage,
+                        new InetSocketAddress(hostAndPort[0], Integer.parseInt(hostAndPort[1]))).start();
+                logger.info("Serving read-only as follower of " + primary);
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                logger.severe("Invalid primary address: " + primary);
+            }
+        }
+    }
+
+    /** Logs a snapshot of the metrics periodically */
+    private void startMetricsLog() {
+        ScheduledExecutorService metricsLog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metricsLog.scheduleAtFixedRate(() -> logger.info("Metrics: " + Metrics.snapshot()),
+                METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
     private void shutdown(){
         logger.fine("Server shutting down, saving index");
+        scheduler.shutdown();
+        logger.info("Metrics: " + Metrics.snapshot());
         fileStorage.saveIndex();
         logger.info("Storage index saved, server exiting.");
         System.exit(0);
@@ -2,38 +2,48 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import static java.net.HttpURLConnection.*;
 
-/** Class for managing a single Client-Server session */
+/** Class for managing a single Client-Server session.
+ * Storage work is queued in the shared FairScheduler, responses are sent by the session's own thread.
+ * Clients are identified by the "client" option of their requests or by their address,
+ * and are subject to the limits of the shared RateLimiter.
+ * Sessions of a read-only server, i.e. a replication follower, refuse PUT and DELETE requests. */
 public class Session {
     static final Logger logger = Logger.getLogger(Session.class.getName());
     private final ExecutorService threadPool;
+    private final FairScheduler scheduler;
+    private final RateLimiter rateLimiter;
+    private final boolean readOnly;
     private final Socket socket;
     private final DataInputStream fromClient;
     private final DataOutputStream toClient;
     private boolean exitServer;
-    private final Set<Future<Response>> pendingResponses = new HashSet<>();
+    private String clientId;
 
     /** Session constructor
      * @param socket The socket by which the client is connected
+     * @param scheduler the queue for storage work shared by all sessions
+     * @param rateLimiter the per-client limits shared by all sessions
+     * @param readOnly true if requests that change the storage should be refused
      * @throws IOException if the client has already disconnected and data streams are therefore closed */
-    Session(Socket socket) throws IOException {
+    Session(Socket socket, FairScheduler scheduler, RateLimiter rateLimiter, boolean readOnly) throws IOException {
         this.socket = socket;
-        threadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.scheduler = scheduler;
+        this.rateLimiter = rateLimiter;
+        this.readOnly = readOnly;
+        threadPool = Executors.newSingleThreadExecutor();
         fromClient = new DataInputStream(socket.getInputStream());
         toClient = new DataOutputStream(socket.getOutputStream());
         exitServer = false;
     }
 
-    /** Starts response handling thread, parses client requests and handles client disconnects
+    /** Parses client requests and handles client disconnects
      * @return true if client requested server should be shut down, false otherwise */
     boolean startLifecycle() {
-        threadPool.submit(this::responseHandler);
         String rawRequest;
         while (!exitServer && !socket.isClosed()) {
             try {
@@ -42,11 +52,22 @@ public class Session {
                 logger.info("Received request: " + rawRequest);
                 try {
                     Request request = Request.parse(rawRequest);
-                    switch (request.getRequestType()) {
-                        case GET -> actionGet(request);
-                        case DELETE -> actionDelete(request);
-                        case PUT -> actionPut(request);
-                        case EXIT -> exitServer = true;
+                    Request.RequestType type = request.getRequestType();
+                    clientId = resolveClientId(request);
+                    if (type != Request.RequestType.EXIT && !rateLimiter.admitRequest(clientId)) {
+                        logger.info("Rejected request of throttled client " + clientId);
+                        rejectRequest(request, HTTP_UNAVAILABLE);
+                    } else if (readOnly && (type == Request.RequestType.PUT || type == Request.RequestType.DELETE)) {
+                        logger.info("Rejected write request on read-only server");
+                        rejectRequest(request, HTTP_BAD_METHOD);
+                    } else {
+                        switch (request.getRequestType()) {
+                            case GET -> actionGet(request);
+                            case STAT -> actionStat(request);
+                            case DELETE -> actionDelete(request);
+                            case PUT -> actionPut(request);
+                            case EXIT -> exitServer = true;
+                        }
                     }
                 } catch (IllegalArgumentException e) {
                     logger.info("Invalid request: " + rawRequest);
@@ -58,20 +79,65 @@ public class Session {
             } catch (IOException e) {
                 logger.info("Lost connection to client.");
                 return exitServer;
+            } catch (InterruptedException e) {
+                logger.info("Session interrupted.");
+                Thread.currentThread().interrupt();
+                break;
             }
         }
         terminateThreads();
         return exitServer;
     }
 
+    /** Returns the id by which the client of a request is rate limited and scheduled, see RateLimiter.clientId */
+    private String resolveClientId(Request request) {
+        return rateLimiter.clientId(socket.getInetAddress().getHostAddress(), request.getOption(Request.CLIENT));
+    }
+
+    /** Replies with an error without handling the request, skipping the file sent with a PUT request
+     * @param request the rejected request
+     * @param code the response code, e.g. HTTP_UNAVAILABLE if the client is throttled */
+    private void rejectRequest(Request request, int code) throws IOException {
+        if (request.getRequestType() == Request.RequestType.PUT) {
+            fromClient.skipNBytes(fromClient.readInt());
+        }
+        String clientId = this.clientId;
+        threadPool.submit(() -> sendResponse(new Response(code, ""), clientId));
+    }
+
+    /** Queues storage work for a request and sends its response once it is done.
+     * If the work fails, the response is "bad request" for invalid request options and "internal error" otherwise.
+     * @param request the request
+     * @param priority the scheduling class of the work
+     * @param task the storage work, producing the response */
+    private void submit(Request request, FairScheduler.Priority priority, Callable<Response> task) {
+        String clientId = this.clientId;
+        scheduler.submit(clientId, priority, task).whenCompleteAsync((response, error) -> {
+            if (error == null) {
+                sendResponse(response, clientId);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                logger.warning("Request failed: " + cause);
+                int code = cause instanceof IllegalArgumentException ? HTTP_BAD_REQUEST : HTTP_INTERNAL_ERROR;
+                sendResponse(new Response(code, ""), clientId);
+            }
+        }, threadPool);
+    }
+
     /** PUT request action
-     * reads file from stream and initiates saving to Storage in a separate thread */
-    private void actionPut(Request request) throws IOException {
+     * reads file from stream, at the client's byte rate, and initiates saving to Storage */
+    private void actionPut(Request request) throws IOException, InterruptedException {
         String fileName = request.getFileIdentifier().value();
         int fileLength = fromClient.readInt();
+        rateLimiter.admitBytes(clientId, fileLength);
         byte[] contents = new byte[fileLength];
         fromClient.readFully(contents, 0, fileLength);
-        Future<Response> futureResponse = threadPool.submit(() -> {
+        if (request.getOption(Request.UPLOAD) != null) {
+            actionPutRange(request, fileLength, contents);
+            return;
+        }
+        submit(request, FairScheduler.Priority.BULK, () -> {
             Server.logger.fine("Put request in " + Thread.currentThread().getName());
             int fileId = Storage.getInstance().saveFile(fileName, fileLength, contents);
             if (fileId > -1) {
@@ -80,70 +146,101 @@ public class Session {
                 return new Response(HTTP_FORBIDDEN, "");
             }
         });
-        pendingResponses.add(futureResponse);
+    }
+
+    /** Ranged PUT request action
+     * initiates saving a range of a file uploaded over several connections in a separate thread.
+     * Replies "accepted" while ranges are missing and with the file index once the file is complete. */
+    private void actionPutRange(Request request, int rangeLength, byte[] contents) {
+        String fileName = request.getFileIdentifier().value();
+        String uploadId = request.getOption(Request.UPLOAD);
+        submit(request, FairScheduler.Priority.BULK, () -> {
+            Server.logger.fine("Put range request in " + Thread.currentThread().getName());
+            long total = Long.parseLong(request.getOption(Request.TOTAL));
+            long offset = Long.parseLong(request.getOption(Request.OFFSET));
+            int fileId = Storage.getInstance().saveRange(fileName, uploadId, total, offset, rangeLength, contents);
+            if (fileId > -1) {
+                return new Response(HTTP_OK, String.valueOf(fileId));
+            } else if (fileId == Storage.UPLOAD_PENDING) {
+                return new Response(HTTP_ACCEPTED, "");
+            } else {
+                return new Response(HTTP_FORBIDDEN, "");
+            }
+        });
     }
 
     /** GET request action
-     * initiates file query from Storage in a separate thread */
+     * initiates file query from Storage in a separate thread.
+     * Replies "not modified" without the file if the client's checksum matches the stored one,
+     * and sends only the requested range if the request has an offset or length option.
+     * A range is at most Integer.MAX_VALUE bytes long, since the protocol sends its length as int;
+     * clients fetch the rest of larger files in further ranges. */
     private void actionGet(Request request) {
-        Future<Response> futureResponse = threadPool.submit(() -> {
+        submit(request, FairScheduler.Priority.INTERACTIVE, () -> {
             Server.logger.fine("Get request in " + Thread.currentThread().getName());
-            File file = Storage.getInstance().getFile(request.getFileIdentifier());
-            if (file == null) {
+            long offset = request.getOption(Request.OFFSET) == null ? 0
+                    : Long.parseLong(request.getOption(Request.OFFSET));
+            long length = request.getOption(Request.LENGTH) == null ? Long.MAX_VALUE
+                    : Long.parseLong(request.getOption(Request.LENGTH));
+            Storage storage = Storage.getInstance();
+            FileMetadata metadata = storage.getMetadata(request.getFileIdentifier());
+            StoredContent content = storage.getFile(request.getFileIdentifier());
+            if (content == null || metadata == null) {
                 return new Response(HTTP_NOT_FOUND, "");
+            } else if (metadata.checksum().equals(request.getOption(Request.IF_NONE_MATCH))) {
+                Server.logger.fine("Not modified: " + content.name());
+                return new Response(HTTP_NOT_MODIFIED, metadata.toString());
+            } else if (offset < 0 || length < 0 || offset > content.length()) {
+                return new Response(HTTP_BAD_REQUEST, metadata.toString());
             } else {
-                Server.logger.fine("Found file: " + file.getName());
-                return new Response(HTTP_OK, "", file);
+                Server.logger.fine("Found file: " + content.name());
+                return new Response(HTTP_OK, metadata.toString(),
+                        content.range(offset, Math.min(length, Integer.MAX_VALUE)));
             }
         });
-        pendingResponses.add(futureResponse);
+    }
+
+    /** STAT request action
+     * initiates metadata query from Storage in a separate thread */
+    private void actionStat(Request request) {
+        submit(request, FairScheduler.Priority.INTERACTIVE, () -> {
+            Server.logger.fine("Stat request in " + Thread.currentThread().getName());
+            FileMetadata metadata = Storage.getInstance().getMetadata(request.getFileIdentifier());
+            return metadata == null ? new Response(HTTP_NOT_FOUND, "") : new Response(HTTP_OK, metadata.toString());
+        });
     }
 
     /** DELETE request action
      * initiates deletion from Storage in a separate thread */
     private void actionDelete(Request request) {
-        Future<Response> futureResponse = threadPool.submit(() -> {
+        submit(request, FairScheduler.Priority.INTERACTIVE, () -> {
             Server.logger.fine("Delete request in " + Thread.currentThread().getName());
             boolean wasDeleted = Storage.getInstance().deleteFile(request.getFileIdentifier());
             return wasDeleted ? new Response(HTTP_OK, "") : new Response(HTTP_NOT_FOUND, "");
         });
-        pendingResponses.add(futureResponse);
-    }
-
-    /** Manages asynchronous response generation
-     *  by checking Future Responses for completion and calling sendResponse with them */
-    private void responseHandler() {
-        while (!threadPool.isShutdown()) {
-            try {
-                for (Future<Response> future : pendingResponses) {
-                    if (future.isDone()) {
-                        sendResponse(future.get());
-                        pendingResponses.remove(future);
-                    }
-                }
-                TimeUnit.MILLISECONDS.sleep(300);
-            }
-            catch (ExecutionException | InterruptedException e) {
-                logger.warning(e.getCause().getMessage());
-            }
-        }
     }
 
     /** Sends a response to the client, including a requested file if applicable
-     * @param response the response that should be returned */
-    private void sendResponse(Response response) {
+     * @param response the response that should be returned
+     * @param clientId the id of the client, whose byte rate applies to the file */
+    private void sendResponse(Response response, String clientId) {
         logger.fine("Sending response in thread " + Thread.currentThread().getName());
         synchronized (threadPool) {
             try {
                 toClient.writeUTF(response.toString());
-                if (response.getFile() != null) {
-                    try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(response.getFile()))) {
-                        int fileLength = (int) response.getFile().length();
+                StoredContent content = response.getContent();
+                if (content != null) {
+                    try {
+                        int fileLength = (int) content.length();
+                        rateLimiter.admitBytes(clientId, fileLength);
                         toClient.writeInt(fileLength);
-                        bis.transferTo(toClient);
+                        content.transferTo(toClient);
                         logger.fine(String.format("File sent: %d bytes", fileLength));
                     } catch (IOException e) {
                         logger.warning("Server couldn't send file");
+                    } catch (InterruptedException e) {
+                        logger.warning("Interrupted while sending file");
+                        Thread.currentThread().interrupt();
                     }
                 }
                 logger.info("Response sent");
@@ -1,28 +1,98 @@
 package server;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 
 /** Storage Singleton class
- * Manages saving and deleting file from "cwd/src/server/data", as well as queries for files by id and name.
+ * Manages saving and deleting file from "cwd/src/server/data", or the directory set by "fileserver.dataDir",
+ * as well as queries for files by id and name.
  * Index management is delegated to a FileIndex,
  * which can be saved as "cwd/src/server/data/storage.idx".
- * If previously saved, the FileIndex is restored when the Singleton is created. */
+ * If previously saved, the FileIndex is restored when the Singleton is created.
+ * Files smaller than "fileserver.packThreshold" bytes are packed into append-only segments
+ * in "cwd/src/server/data/segments" instead of being stored as separate files.
+ * Large files uploaded in ranges are reassembled in "cwd/src/server/data/uploads".
+ * On startup, the data directory is scanned in the background and reconciled with the index.
+ * Once replication is enabled, all changes of the index are recorded in a ReplicationLog.
+ * Files whose contents don't match their metadata are moved to "cwd/src/server/data/quarantine". */
 public class Storage {
     private static final Logger logger = Logger.getLogger(Storage.class.getName());
-    private static final Path storagePath = Path.of(System.getProperty("user.dir"),
-            "src", "server", "data");
-    private static final File indexFile = storagePath.resolve( "storage.idx").toFile();
+    private static final Path DEFAULT_PATH = Path.of(System.getProperty("fileserver.dataDir",
+            Path.of(System.getProperty("user.dir"), "src", "server", "data").toString()));
+    private static final int ID_BLOCK = 1000;
+    private static final boolean RECOVERY_ENABLED = !"false".equals(System.getProperty("fileserver.recovery"));
+    private static final int PACK_THRESHOLD = Integer.getInteger("fileserver.packThreshold", 64 * 1024);
+    private static final long SEGMENT_SIZE = Long.getLong("fileserver.segmentSize", 64L * 1024 * 1024);
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    /** Result of saveRange while ranges of the upload are still missing */
+    static final int UPLOAD_PENDING = -2;
     private static Storage instance = null;
 
+    private final Path storagePath;
+    private final File indexFile;
+    private final Path idsFile;
+    private final Path segmentsPath;
+    private final Path uploadsPath;
+    private final Path quarantinePath;
     private final FileIndex index;
+    private final SegmentStore segments;
+    private final UploadAssembler uploads;
+    private int reservedIds;
+    private volatile ForkJoinTask<?> recovery = null;
+    private volatile StorageRecovery recoveryScan = null;
+    private volatile boolean deadBytesCounted = true;
+    private volatile ReplicationLog changes = null;
+    /** Metadata being computed for files stored without it, by name */
+    private final Map<String, CompletableFuture<FileMetadata>> computingMetadata = new ConcurrentHashMap<>();
+    /** Names of files that are being stored, claimed so that concurrent PUTs of the same name don't both succeed */
+    private final Set<String> storing = ConcurrentHashMap.newKeySet();
+    /** Guards the locations of packed files, so deletes and compaction see each other's changes */
+    private final Object packLock = new Object();
 
-    /** private constructor, only used if instance is null */
-    private Storage(FileIndex index) {
-        this.index = index;
+    /** private constructor, restores the index of a data directory
+     * @param storagePath the data directory
+     * @param segmentSize size after which a new segment is started */
+    private Storage(Path storagePath, long segmentSize) {
+        this.storagePath = storagePath;
+        indexFile = storagePath.resolve("storage.idx").toFile();
+        idsFile = storagePath.resolve("storage.ids");
+        segmentsPath = storagePath.resolve("segments");
+        uploadsPath = storagePath.resolve("uploads");
+        quarantinePath = storagePath.resolve("quarantine");
+        reservedIds = readReservedIds();
+        FileIndex restored = initIndex();
+        if (restored == null && (indexFile.exists() || reservedIds > 0)) {
+            logger.warning("No usable index found, ids below " + reservedIds + " won't be reused");
+        }
+        index = restored == null ? new FileIndex(new ConcurrentHashMap<>(), reservedIds) : restored;
+        index.advanceCounter(reservedIds);
+        segments = initSegments(segmentSize);
+        uploads = initUploads();
+        if (segments != null) {
+            ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "segment-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactSegments,
+                    COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
     }
 
     /** Provides access to the Storage Singleton instance
@@ -30,15 +100,27 @@ public class Storage {
      */
     static Storage getInstance(){
         if (instance == null){
-            instance = new Storage(initIndex());
+            instance = open(DEFAULT_PATH, SEGMENT_SIZE);
         }
         return instance;
     }
 
-    /** Initializes the FileIndex either from a saved index or by creating an empty index
-     * @return the initialized FileIndex
+    /** Opens the storage in a data directory and starts recovery, unless it is disabled
+     * @param storagePath the data directory
+     * @param segmentSize size after which a new segment of packed files is started
+     * @return a new Storage for the directory */
+    static Storage open(Path storagePath, long segmentSize) {
+        Storage storage = new Storage(storagePath, segmentSize);
+        if (RECOVERY_ENABLED) {
+            storage.startRecovery();
+        }
+        return storage;
+    }
+
+    /** Initializes the FileIndex from a saved index
+     * @return the restored FileIndex, or null if there is no saved index or it can't be read
      */
-    private static FileIndex initIndex(){
+    private FileIndex initIndex(){
         FileIndex index = null;
         if (indexFile.exists()){
             try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
@@ -49,35 +131,252 @@ public class Storage {
                 logger.warning("Error while deserializing storage map");
             }
         }
-        return index == null ? new FileIndex(new ConcurrentHashMap<>(), 0) : index;
+        return index;
     }
 
-    /** Returns the queried file if it is present in the index and null otherwise
+    /** Reads the upper bound of the ids handed out so far, which is kept separately from the index
+     * @return the lowest id that has certainly not been assigned */
+    private int readReservedIds() {
+        try {
+            return Files.exists(idsFile) ? Integer.parseInt(Files.readString(idsFile).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            logger.warning("Error while reading reserved ids");
+            return 0;
+        }
+    }
+
+    /** Reserves a new block of ids once an assigned id reaches the reserved bound,
+     * so that ids are not reused even if the index is lost
+     * @param id the assigned id */
+    private synchronized void reserveIds(int id) {
+        if (id < reservedIds) { return; }
+        reservedIds = id + ID_BLOCK;
+        try {
+            Files.createDirectories(storagePath);
+            Files.writeString(idsFile, String.valueOf(reservedIds));
+        } catch (IOException e) {
+            logger.warning("Could not save reserved ids");
+        }
+    }
+
+    /** Lowers the reserved bound to the next id after the index was saved, so that a clean restart
+     * continues with that id, while ids assigned since are still covered by a new reservation */
+    private synchronized void releaseIds() {
+        reservedIds = index.nextId();
+        try {
+            Files.writeString(idsFile, String.valueOf(reservedIds));
+        } catch (IOException e) {
+            logger.warning("Could not save reserved ids");
+        }
+    }
+
+    /** Tells a running recovery that a file is being removed from the index, see StorageRecovery.removed */
+    private void removing(String name) {
+        StorageRecovery scan = recoveryScan;
+        if (scan != null) { scan.removed(name); }
+    }
+
+    /** Starts the background scan of the data directory, see StorageRecovery */
+    private void startRecovery() {
+        deadBytesCounted = false;
+        Set<Path> excluded = Set.of(indexFile.toPath(), idsFile, segmentsPath, uploadsPath, quarantinePath);
+        try {
+            recoveryScan = new StorageRecovery(storagePath, excluded, index, segments, id -> {
+                reserveIds(id);
+                logChange(ReplicationLog.Kind.PUT, id, index.nameOf(id));
+            });
+            recovery = recoveryScan.start();
+        } catch (IOException e) {
+            logger.warning("Recovery aborted: " + e.getMessage());
+        }
+    }
+
+    /** Opens the segment store and accounts all records not referenced by the index as dead
+     * @param segmentSize size after which a new segment is started
+     * @return the segment store, or null if packing is not available */
+    private SegmentStore initSegments(long segmentSize) {
+        try {
+            SegmentStore segments = new SegmentStore(segmentsPath, segmentSize);
+            countDeadBytes(segments, index);
+            return segments;
+        } catch (IOException e) {
+            logger.severe("Could not open segment store, small files will be stored unpacked");
+            return null;
+        }
+    }
+
+    /** Prepares the directory for reassembling uploads
+     * @return the upload assembler, or null if ranged uploads are not available */
+    private UploadAssembler initUploads() {
+        try {
+            return new UploadAssembler(uploadsPath);
+        } catch (IOException e) {
+            logger.severe("Could not prepare upload directory, ranged uploads are not available");
+            return null;
+        }
+    }
+
+    private static void countDeadBytes(SegmentStore segments, FileIndex index) throws IOException {
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        index.locations().forEach((id, location) -> liveBytes.merge(location.segmentId(),
+                SegmentStore.recordSize(index.nameOf(id), location), Long::sum));
+        segments.initDeadBytes(liveBytes);
+    }
+
+    /** Returns the contents of the queried file if it is present in the index and null otherwise
      * @param fileIdentifier the identifier of the file
-     * @return the file if it exists or null otherwise
+     * @return a read handle for the contents if the file exists or null otherwise
      * */
-    File getFile(FileIdentifier fileIdentifier) {
+    StoredContent getFile(FileIdentifier fileIdentifier) {
         String fileName = index.getName(fileIdentifier);
         if (fileName != null){
+            SegmentStore.Location location = index.getLocation(fileName);
+            if (location != null) {
+                return segments.content(fileName, location);
+            }
             File file = storagePath.resolve(fileName).toFile();
             if (file.exists() && file.isFile()){
-                return storagePath.resolve(fileName).toFile();
+                return new StoredContent(fileName, file.toPath(), 0, file.length());
             }
         }
         return null;
     }
 
+    /** Returns the metadata of the queried file if it is present in the index and null otherwise.
+     * Metadata of files stored without it, e.g. found during recovery, is computed and recorded on first access;
+     * concurrent requests for the same file, e.g. the ranges of a parallel download, wait for that computation.
+     * @param fileIdentifier the identifier of the file
+     * @return the metadata if the file exists or null otherwise */
+    FileMetadata getMetadata(FileIdentifier fileIdentifier) {
+        String fileName = index.getName(fileIdentifier);
+        FileMetadata metadata = fileName == null ? null : index.getMetadata(fileName);
+        if (metadata != null) { return metadata; }
+        StoredContent content = getFile(fileIdentifier);
+        if (content == null) { return null; }
+        CompletableFuture<FileMetadata> computation = new CompletableFuture<>();
+        CompletableFuture<FileMetadata> running = computingMetadata.putIfAbsent(content.name(), computation);
+        if (running != null) { return running.join(); }
+        try {
+            metadata = index.getMetadata(content.name());
+            if (metadata == null) {
+                metadata = FileMetadata.of(content, modifiedTime(content));
+                index.setMetadata(content.name(), metadata);
+            }
+            return metadata;
+        } catch (IOException e) {
+            logger.warning("Error while computing metadata of " + content.name());
+            return null;
+        } finally {
+            computation.complete(metadata);
+            computingMetadata.remove(content.name(), computation);
+        }
+    }
+
+    /** Returns the time stored contents were written, for files stored without metadata.
+     * Segments don't record when a packed file was written, so its time is unknown.
+     * @param content the stored contents
+     * @return the modification time of a loose file, or FileMetadata.UNKNOWN for a packed file
+     * @throws IOException if the time of a loose file can't be read */
+    long modifiedTime(StoredContent content) throws IOException {
+        if (content.path().startsWith(segmentsPath)) { return FileMetadata.UNKNOWN; }
+        return Files.getLastModifiedTime(content.path()).toMillis();
+    }
+
+    /** Returns the metadata recorded in the index, without computing missing metadata
+     * @param name the name of the file
+     * @return the metadata, or null if it is not known */
+    FileMetadata getRecordedMetadata(String name) {
+        return index.getMetadata(name);
+    }
+
+    /** Records metadata computed for a file that was stored without it
+     * @param name the name of the file
+     * @param metadata the metadata of the file */
+    void recordMetadata(String name, FileMetadata metadata) {
+        index.setMetadata(name, metadata);
+    }
+
+    /** Moves a file whose contents don't match its metadata to the quarantine directory
+     * and removes it from the index, unless the file was changed or removed in the meantime.
+     * Of a packed file, the bytes that can still be read are copied. The change is not replicated,
+     * since the copies of followers are checked by their own scrubbers.
+     * @param id the id of the file
+     * @param name the name of the file
+     * @param metadata the metadata the contents were checked against
+     * @param content the checked contents, or null if they are missing
+     * @return true if the file was quarantined, false otherwise */
+    synchronized boolean quarantine(int id, String name, FileMetadata metadata, StoredContent content) {
+        Path target = quarantinePath.resolve(id + "-" + name.replace(File.separatorChar, '_'));
+        try {
+            Files.createDirectories(quarantinePath);
+            synchronized (packLock) {
+                StoredContent current = getFile(new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id)));
+                if (!name.equals(index.nameOf(id)) || !Objects.equals(metadata, index.getMetadata(name))
+                        || (current != null && (content == null || !current.path().equals(content.path())
+                        || current.offset() != content.offset()))) {
+                    return false;
+                }
+                SegmentStore.Location location = index.getLocation(name);
+                if (location != null) {
+                    copyReadable(current, target);
+                    segments.tombstone(name, location);
+                } else if (current != null) {
+                    Files.move(current.path(), target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                removing(name);
+                index.remove(id, name);
+            }
+        } catch (IOException e) {
+            logger.warning("Could not quarantine " + name + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /** Copies stored contents to a file, up to where they are truncated
+     * @throws IOException if the contents can't be read or the file can't be written; the file is removed */
+    private void copyReadable(StoredContent content, Path target) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target.toFile()))) {
+            content.transferTo(out);
+        } catch (EOFException e) {
+            logger.warning("Contents of " + content.name() + " are truncated, quarantined what was left");
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+
     /** Deletes file if file is found in index and exists
      * @return true if successful and false otherwise */
     boolean deleteFile(FileIdentifier fileIdentifier) {
         boolean success;
         String fileName = index.getName(fileIdentifier);
+        synchronized (packLock) {
+            SegmentStore.Location location = fileName == null ? null : index.getLocation(fileName);
+            if (location != null) {
+                try {
+                    logger.fine("Deleting packed file " + fileName);
+                    int id = index.idOf(fileName);
+                    segments.tombstone(fileName, location);
+                    removing(fileName);
+                    index.remove(fileName);
+                    logChange(ReplicationLog.Kind.DELETE, id, fileName);
+                    return true;
+                } catch (IOException e) {
+                    logger.warning("Error while deleting packed file " + fileName);
+                    return false;
+                }
+            }
+        }
         if (fileName != null && storagePath.resolve(fileName).toFile().exists()){
             File file = storagePath.resolve(fileName).toFile();
             logger.fine("Deleting file " + file.getName());
+            int id = index.idOf(fileName);
             boolean wasDeleted = file.delete();
             if (wasDeleted){
+                removing(fileName);
                 index.remove(fileName);
+                logChange(ReplicationLog.Kind.DELETE, id, fileName);
                 success = true;
             } else {
                 logger.warning("Error while deleting file " + file.getAbsolutePath());
@@ -90,22 +389,263 @@ public class Storage {
         return success;
     }
 
-    /** Saves file if file of the same name is not yet in index
+    /** Saves file if file of the same name is neither in the index nor being saved concurrently
      * @return assigned file index if successful and -1 otherwise */
     int saveFile(String name, int fileLength, byte[] content) {
-        if (index.contains(name)) { return -1; }
+        if (!claim(name)) { return -1; }
+        try {
+            if (segments != null && fileLength < PACK_THRESHOLD) {
+                return savePacked(name, fileLength, content);
+            }
+            FileMetadata metadata = FileMetadata.of(content, fileLength);
+            writeLoose(name, fileLength, content);
+            int id = index.add(name, null, metadata);
+            reserveIds(id);
+            logChange(ReplicationLog.Kind.PUT, id, name);
+            return id;
+        } catch (IOException e) {
+            logger.warning("Error while saving file");
+            return -1;
+        } finally {
+            storing.remove(name);
+        }
+    }
+
+    /** Claims the name of a file that is about to be stored; a successful claim must be removed from "storing"
+     * once the file is in the index or storing it failed
+     * @return true if no file of that name is stored or being stored, false otherwise */
+    private boolean claim(String name) {
+        if (!storing.add(name)) { return false; }
+        if (index.contains(name)) {
+            storing.remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    /** Creates an empty file in the upload directory, into which a replicated file is received;
+     * leftovers are removed on the next start, see UploadAssembler
+     * @throws IOException if the file can't be created */
+    Path createReplicaFile() throws IOException {
+        return Files.createFile(uploadsPath.resolve("replica-" + UUID.randomUUID() + ".part"));
+    }
+
+    /** Saves a file received from the primary server under the id assigned there,
+     * replacing any file of the same name or id.
+     * A replaced packed file is tombstoned before the new record is appended,
+     * so that recovery doesn't apply the tombstone to the new record.
+     * @param id the id of the file on the primary server
+     * @param name the name of the file
+     * @param metadata the metadata of the file
+     * @param received the file holding the contents, see createReplicaFile; it is moved or removed
+     * @return true if successful and false otherwise */
+    synchronized boolean saveReplica(int id, String name, FileMetadata metadata, Path received) {
+        String previous = index.nameOf(id);
+        if (previous != null && !previous.equals(name)) {
+            deleteFile(new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id)));
+        }
+        try {
+            boolean wasLoose = index.contains(name) && index.getLocation(name) == null;
+            if (segments != null && Files.size(received) < PACK_THRESHOLD) {
+                byte[] content = Files.readAllBytes(received);
+                synchronized (packLock) {
+                    tombstoneReplaced(name);
+                    index.put(id, name, segments.append(name, content, content.length), metadata);
+                }
+                Files.delete(received);
+                if (wasLoose) { Files.deleteIfExists(storagePath.resolve(name)); }
+            } else {
+                Files.move(received, storagePath.resolve(name),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                synchronized (packLock) {
+                    tombstoneReplaced(name);
+                    index.put(id, name, null, metadata);
+                }
+            }
+            reserveIds(id);
+            logChange(ReplicationLog.Kind.PUT, id, name);
+            return true;
+        } catch (IOException e) {
+            logger.warning("Error while saving replicated file " + name);
+            return false;
+        }
+    }
+
+    /** Tombstones the packed record of a file that is about to be replaced, if any; call while holding packLock */
+    private void tombstoneReplaced(String name) throws IOException {
+        SegmentStore.Location replaced = index.getLocation(name);
+        if (replaced != null) {
+            segments.tombstone(name, replaced);
+        }
+    }
+
+    /** Deletes all files whose ids are not in the given set, e.g. after receiving a snapshot
+     * @param ids the ids of the files to be kept
+     * @return the number of deleted files */
+    int retainOnly(Set<Integer> ids) {
+        int deleted = 0;
+        for (int id : index.entries().keySet()) {
+            if (!ids.contains(id) && deleteFile(new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id)))) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /** Writes a file into the data directory, replacing an existing one */
+    private void writeLoose(String name, int fileLength, byte[] content) throws IOException {
         File file = storagePath.resolve(name).toFile();
         try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file))){
             logger.fine("Writing to output stream");
             bos.write(content, 0, fileLength);
             logger.info("Saved " + file.getName());
-            return index.add(name);
+        }
+    }
+
+    /** Saves a range of a file uploaded over several connections.
+     * The file is stored once all of its ranges have been received.
+     * @param name the name of the file
+     * @param uploadId the id the client chose for the upload
+     * @param total the size of the complete file
+     * @param offset the position of the range in the file
+     * @param rangeLength number of bytes in the range
+     * @param content buffer holding the range
+     * @return assigned file index if the upload is complete, UPLOAD_PENDING if ranges are missing and -1 otherwise */
+    int saveRange(String name, String uploadId, long total, long offset, int rangeLength, byte[] content) {
+        if (uploads == null || index.contains(name)) { return -1; }
+        try {
+            UploadAssembler.Completed assembled = uploads.write(uploadId, name, total, offset, content, rangeLength);
+            return assembled == null ? UPLOAD_PENDING : storeAssembled(name, assembled);
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warning("Error while saving range of upload " + uploadId + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /** Moves a reassembled upload into the data directory
+     * @return assigned file index if successful and -1 otherwise */
+    private int storeAssembled(String name, UploadAssembler.Completed assembled) throws IOException {
+        if (!claim(name)) {
+            Files.delete(assembled.file());
+            return -1;
+        }
+        try {
+            Path file = storagePath.resolve(name);
+            Files.move(assembled.file(), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            int id = index.add(name, null, assembled.metadata());
+            reserveIds(id);
+            logChange(ReplicationLog.Kind.PUT, id, name);
+            logger.info("Saved reassembled upload " + name);
+            return id;
+        } finally {
+            storing.remove(name);
+        }
+    }
+
+    /** Appends a small file to the active segment
+     * @return assigned file index if successful and -1 otherwise */
+    private int savePacked(String name, int fileLength, byte[] content) {
+        try {
+            SegmentStore.Location location;
+            int id;
+            synchronized (packLock) {
+                location = segments.append(name, content, fileLength);
+                id = index.add(name, location, FileMetadata.of(content, fileLength));
+            }
+            reserveIds(id);
+            logChange(ReplicationLog.Kind.PUT, id, name);
+            logger.info("Packed " + name + " into segment " + location.segmentId());
+            return id;
         } catch (IOException e) {
-            logger.warning("Error while saving file");
+            logger.warning("Error while packing file");
             return -1;
         }
     }
 
+    /** Starts recording changes of the index, which are streamed to followers
+     * @return the log the changes are recorded in */
+    synchronized ReplicationLog enableReplication() {
+        if (changes == null) {
+            changes = new ReplicationLog();
+        }
+        return changes;
+    }
+
+    /** Returns a snapshot of all file names by id */
+    Map<Integer, String> entries() {
+        return index.entries();
+    }
+
+    /** Returns true while startup recovery is reconciling the index with the data directory */
+    boolean isRecovering() {
+        return recovery != null && !recovery.isDone();
+    }
+
+    private void logChange(ReplicationLog.Kind kind, int id, String name) {
+        ReplicationLog log = changes;
+        if (log != null && name != null) {
+            log.record(kind, id, name);
+        }
+    }
+
+    /** Rewrites segments that mostly consist of deleted records.
+     * Live records are copied to the active segment one at a time while holding packLock;
+     * runs periodically in the background, but not before startup recovery has registered all packed files. */
+    void compactSegments() {
+        if (isRecovering()) { return; }
+        try {
+            if (!deadBytesCounted) {
+                countDeadBytes(segments, index);
+                deadBytesCounted = true;
+            }
+            segments.deleteRetired();
+            for (int segmentId : segments.compactionCandidates()) {
+                int moved = 0;
+                for (int id : index.locations().keySet()) {
+                    synchronized (packLock) {
+                        SegmentStore.Location location = index.locations().get(id);
+                        String name = index.nameOf(id);
+                        if (location == null || location.segmentId() != segmentId || name == null) { continue; }
+                        SegmentStore.Location relocated = segments.relocate(name, location);
+                        if (index.relocate(id, location, relocated)) {
+                            moved++;
+                        } else {
+                            segments.tombstone(name, relocated);
+                        }
+                    }
+                }
+                int kept = keepTombstones(segmentId);
+                segments.retire(segmentId);
+                logger.info(String.format("Compacted segment %d, moved %d files and %d tombstones", segmentId, moved, kept));
+            }
+        } catch (IOException e) {
+            logger.warning("Error while compacting segments: " + e.getMessage());
+        }
+    }
+
+    /** Copies the tombstones of a segment that is about to be compacted to the active segment,
+     * if an older segment may still hold a deleted record and the file was not packed again since.
+     * Otherwise recovery would find the deleted record without its tombstone and restore the file.
+     * @param segmentId the id of the segment
+     * @return the number of copied tombstones */
+    private int keepTombstones(int segmentId) throws IOException {
+        if (segments.segmentIds().stream().noneMatch(id -> id < segmentId)) { return 0; }
+        Set<String> deleted = new LinkedHashSet<>();
+        segments.scan(segmentId, (name, location) -> {
+            if (location == null) { deleted.add(name); }
+        }, Long.MAX_VALUE);
+        int kept = 0;
+        for (String name : deleted) {
+            synchronized (packLock) {
+                if (index.getLocation(name) == null) {
+                    segments.copyTombstone(name);
+                    kept++;
+                }
+            }
+        }
+        return kept;
+    }
+
     /** Checks if index file exists and tries to create it if not
      * @return true if file is present and false otherwise */
     private boolean verifyOrCreateIndexFile() {
@@ -126,15 +666,24 @@ public class Storage {
         return fileExists;
     }
 
-    /** Saves index to file; call when exiting */
+    /** Saves index to file, as well as the next id; call when exiting */
     void saveIndex() {
+        if (segments != null) {
+            try {
+                segments.sync();
+            } catch (IOException e) {
+                logger.warning("Could not flush segments to disk.");
+            }
+        }
         boolean isFileCreated = verifyOrCreateIndexFile();
         if (isFileCreated) {
             try(ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))){
                 oos.writeObject(index);
             } catch (IOException e) {
                 logger.warning("Could not save index to file.");
+                return;
             }
+            releaseIds();
         }
     }
 
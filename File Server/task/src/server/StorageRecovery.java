@@ -0,0 +1,259 @@
+package server;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
+
+/** Startup recovery: scans the data directory with a parallel fork-join walk
+ * and reconciles the result with the loaded FileIndex.
+ * Files and packed records missing from the index are registered with fresh ids,
+ * index entries without contents are dropped.
+ * Only entries that were in the index when the scan started are checked,
+ * and only files written before that and not removed since are registered,
+ * so requests can be served while recovery is running. */
+class StorageRecovery {
+    private static final Logger logger = Logger.getLogger(StorageRecovery.class.getName());
+    private static final int BATCH_SIZE = 1024;
+    private static final long PROGRESS_INTERVAL_SECONDS = 2;
+
+    private final Path storagePath;
+    private final Set<Path> excluded;
+    private final FileIndex index;
+    private final SegmentStore segments;
+    private final IntConsumer onRegistered;
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong verified = new AtomicLong();
+    private final Set<String> removed = ConcurrentHashMap.newKeySet();
+    private volatile boolean finished = false;
+
+    /** Constructor
+     * @param storagePath the data directory
+     * @param excluded paths within the data directory that don't hold stored files
+     * @param index the loaded FileIndex
+     * @param segments the segment store, or null if packing is not available
+     * @param onRegistered called with the id of each registered file */
+    StorageRecovery(Path storagePath, Set<Path> excluded, FileIndex index, SegmentStore segments,
+                    IntConsumer onRegistered) {
+        this.storagePath = storagePath;
+        this.excluded = excluded;
+        this.index = index;
+        this.segments = segments;
+        this.onRegistered = onRegistered;
+    }
+
+    /** Takes note of a file that is being removed while recovery is running, so that it is not registered again;
+     * call before removing it from the index
+     * @param name the name of the file */
+    void removed(String name) {
+        if (!finished) { removed.add(name); }
+    }
+
+    /** Takes note of the index entries, the time and the end of the segments,
+     * and starts recovery in its own fork-join pool
+     * @return the running recovery task
+     * @throws IOException if the end of the segments can't be determined */
+    ForkJoinTask<?> start() throws IOException {
+        Map<Integer, String> indexed = index.entries();
+        FileTime startTime = FileTime.fromMillis(System.currentTimeMillis());
+        SegmentStore.Location tail = segments == null ? null : segments.tail();
+        ForkJoinPool pool = new ForkJoinPool();
+        ForkJoinTask<?> task = pool.submit(() -> run(indexed, startTime, tail));
+        pool.shutdown();
+        return task;
+    }
+
+    /** Scans the data directory and the segments, then reconciles them with the index */
+    private void run(Map<Integer, String> indexed, FileTime startTime, SegmentStore.Location tail) {
+        long start = System.nanoTime();
+        ScheduledExecutorService progress = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "recovery-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        progress.scheduleAtFixedRate(() -> logger.info(String.format("Recovery in progress: %d files scanned, %d of %d index entries verified",
+                scanned.get(), verified.get(), indexed.size())), PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        try {
+            List<String> looseFiles = new DirectoryScan(storagePath, startTime).invoke();
+            Map<String, SegmentStore.Location> packedFiles = segments == null ? Map.of() : scanSegments(tail);
+            int dropped = dropDangling(indexed);
+            int registered = registerOrphans(looseFiles, packedFiles);
+            logger.info(String.format("Recovery finished in %d ms: %d files scanned, %d orphans registered, %d dangling entries dropped",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), scanned.get(), registered, dropped));
+        } catch (UncheckedIOException e) {
+            logger.warning("Recovery aborted: " + e.getCause().getMessage());
+        } finally {
+            finished = true;
+            removed.clear();
+            progress.shutdownNow();
+        }
+    }
+
+    /** Scans all segments in parallel and replays their records in the order they were written
+     * @param tail the end of the segments when recovery started; later records are skipped
+     * @return the location of the latest record of each packed file that was not deleted afterwards */
+    private Map<String, SegmentStore.Location> scanSegments(SegmentStore.Location tail) {
+        Map<Integer, ForkJoinTask<List<Map.Entry<String, SegmentStore.Location>>>> scans = new TreeMap<>();
+        try {
+            for (int segmentId : segments.segmentIds()) {
+                if (segmentId > tail.segmentId()) { continue; }
+                scans.put(segmentId, ForkJoinTask.adapt(() -> {
+                    List<Map.Entry<String, SegmentStore.Location>> records = new ArrayList<>();
+                    segments.scan(segmentId, (name, location) -> records.add(new HashMap.SimpleEntry<>(name, location)),
+                            segmentId == tail.segmentId() ? tail.offset() : Long.MAX_VALUE);
+                    scanned.addAndGet(records.size());
+                    return records;
+                }).fork());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Map<String, SegmentStore.Location> packedFiles = new HashMap<>();
+        scans.values().forEach(scan -> scan.join().forEach(record -> {
+            if (record.getValue() == null) {
+                packedFiles.remove(record.getKey());
+            } else {
+                packedFiles.put(record.getKey(), record.getValue());
+            }
+        }));
+        return packedFiles;
+    }
+
+    /** Removes index entries whose contents are neither on disk nor in a segment.
+     * Loose files are looked up directly, since they may have been written after the scan started.
+     * @return the number of dropped entries */
+    private int dropDangling(Map<Integer, String> indexed) {
+        int dropped = 0;
+        for (Map.Entry<Integer, String> entry : indexed.entrySet()) {
+            String name = entry.getValue();
+            SegmentStore.Location location = index.getLocation(name);
+            boolean present = location == null ? Files.isRegularFile(storagePath.resolve(name))
+                    : segments != null && segments.isValid(location);
+            if (!present && index.remove(entry.getKey(), name)) {
+                logger.warning(String.format("Dropped index entry %d (%s): contents are missing", entry.getKey(), name));
+                dropped++;
+            }
+            verified.incrementAndGet();
+        }
+        return dropped;
+    }
+
+    /** Adds files and packed records that are not in the index and were not removed while recovery was running
+     * @return the number of registered files */
+    private int registerOrphans(List<String> looseFiles, Map<String, SegmentStore.Location> packedFiles) {
+        int registered = 0;
+        for (String name : looseFiles) {
+            if (Files.isRegularFile(storagePath.resolve(name)) && register(name, null)) { registered++; }
+        }
+        for (Map.Entry<String, SegmentStore.Location> entry : packedFiles.entrySet()) {
+            if (register(entry.getKey(), entry.getValue())) { registered++; }
+        }
+        return registered;
+    }
+
+    private boolean register(String name, SegmentStore.Location location) {
+        if (index.contains(name) || removed.contains(name)) { return false; }
+        int id = index.addIfAbsent(name, location);
+        if (id < 0) { return false; }
+        onRegistered.accept(id);
+        logger.info(String.format("Registered orphaned file %s with id %d", name, id));
+        return true;
+    }
+
+    /** Fork-join task listing the stored files below a directory that were written before a given time */
+    private class DirectoryScan extends RecursiveTask<List<String>> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final Path directory;
+        private final FileTime before;
+
+        DirectoryScan(Path directory, FileTime before) {
+            this.directory = directory;
+            this.before = before;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<DirectoryScan> subdirectories = new ArrayList<>();
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (excluded.contains(entry)) { continue; }
+                    if (Files.isDirectory(entry)) {
+                        subdirectories.add(new DirectoryScan(entry, before));
+                    } else {
+                        files.add(entry);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(subdirectories);
+            List<String> names = new FileBatch(files, 0, files.size(), before).invoke();
+            subdirectories.forEach(scan -> names.addAll(scan.join()));
+            return names;
+        }
+    }
+
+    /** Fork-join task checking a range of directory entries, split until it is small enough */
+    private class FileBatch extends RecursiveTask<List<String>> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final List<Path> files;
+        private final int from;
+        private final int to;
+        private final FileTime before;
+
+        FileBatch(List<Path> files, int from, int to, FileTime before) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+            this.before = before;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (to - from > BATCH_SIZE) {
+                int middle = (from + to) >>> 1;
+                FileBatch second = new FileBatch(files, middle, to, before);
+                second.fork();
+                List<String> names = new FileBatch(files, from, middle, before).compute();
+                names.addAll(second.join());
+                return names;
+            }
+            List<String> names = new ArrayList<>();
+            for (Path file : files.subList(from, to)) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (attributes.isRegularFile() && attributes.lastModifiedTime().compareTo(before) < 0) {
+                        names.add(storagePath.relativize(file).toString());
+                    }
+                } catch (IOException e) {
+                    logger.warning("Could not read attributes of " + file);
+                }
+                scanned.incrementAndGet();
+            }
+            return names;
+        }
+    }
+}
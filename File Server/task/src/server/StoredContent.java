@@ -0,0 +1,48 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** Read handle for the contents of a stored file,
+ * which is either a whole file on disk or a slice of a segment holding packed small files
+ * @param name the name of the stored file
+ * @param path the file on disk holding the contents
+ * @param offset position of the first content byte in that file
+ * @param length number of content bytes */
+record StoredContent(String name, Path path, long offset, long length) {
+
+    /** Returns a handle for a range of the contents
+     * @param from position of the range within the contents
+     * @param maxLength maximum length of the range; it ends early at the end of the contents
+     * @throws IllegalArgumentException if the range starts outside the contents */
+    StoredContent range(long from, long maxLength) {
+        if (from < 0 || from > length || maxLength < 0) {
+            throw new IllegalArgumentException("Range out of bounds for " + name);
+        }
+        return new StoredContent(name, path, offset + from, Math.min(maxLength, length - from));
+    }
+
+    /** Copies the contents to an output stream using positional reads
+     * @param out the stream to write to
+     * @throws IOException if the file can't be read or is shorter than expected */
+    void transferTo(OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    throw new EOFException("Stored content is truncated: " + name);
+                }
+                position += sent;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/** Token bucket for rate limiting: tokens are refilled continuously up to a burst capacity.
+ * Reservations may take more tokens than are available; the caller is told how long to wait
+ * until the reservation is covered, so that waiting callers are served in the order they reserved. */
+class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /** Constructor; the bucket starts full
+     * @param ratePerSecond number of tokens refilled per second
+     * @param capacity maximum number of tokens, i.e. the allowed burst */
+    TokenBucket(double ratePerSecond, double capacity) {
+        this.tokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /** Reserves tokens, unless the caller would have to wait too long for them
+     * @param amount number of tokens to be reserved
+     * @param maxWaitNanos maximum acceptable waiting time
+     * @return nanoseconds the caller has to wait before going ahead, or -1 if nothing was reserved */
+    synchronized long reserve(long amount, long maxWaitNanos) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        long waitNanos = tokens >= amount ? 0 : (long) Math.ceil((amount - tokens) / tokensPerNano);
+        if (waitNanos > maxWaitNanos) {
+            return -1;
+        }
+        tokens -= amount;
+        return waitNanos;
+    }
+}
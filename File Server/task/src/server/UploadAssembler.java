@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/** Reassembles files that clients upload in ranges over several parallel connections.
+ * Ranges are written in place into a temporary file, which is handed over once all bytes have arrived.
+ * The checksum is computed as the ranges arrive: a range continuing the digested prefix is digested from
+ * the received buffer, ranges arriving ahead of it are read back from the file once the gap is filled.
+ * Uploads that don't receive any range for a while are discarded. */
+class UploadAssembler {
+    private static final Logger logger = Logger.getLogger(UploadAssembler.class.getName());
+    private static final long STALE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Path directory;
+    private final ConcurrentMap<String, PartialUpload> uploads = new ConcurrentHashMap<>();
+
+    /** Upload in progress
+     * @param name the name under which the file will be stored
+     * @param total the size of the complete file
+     * @param file the temporary file the ranges are written to
+     * @param channel channel for positional writes to the temporary file
+     * @param offsets start positions of the ranges received so far
+     * @param received number of bytes received so far
+     * @param lastWrite time of the last write, in milliseconds since the epoch
+     * @param digest digest of the contiguous prefix of the file received so far
+     * @param digested length of that prefix
+     * @param undigested offsets and lengths of ranges received beyond that prefix;
+     *                   the digest fields are guarded by the upload's lock */
+    private record PartialUpload(String name, long total, Path file, FileChannel channel,
+                                 Set<Long> offsets, AtomicLong received, AtomicLong lastWrite,
+                                 MessageDigest digest, AtomicLong digested, NavigableMap<Long, Integer> undigested) {}
+
+    /** Upload whose ranges have all been received
+     * @param file the temporary file holding the complete upload
+     * @param metadata the metadata of the upload, with the time it was completed */
+    record Completed(Path file, FileMetadata metadata) {}
+
+    /** Constructor; removes temporary files left over from a previous run
+     * @param directory the directory for temporary files
+     * @throws IOException if the directory can't be created or cleaned up */
+    UploadAssembler(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (Stream<Path> leftovers = Files.list(directory)) {
+            for (Path leftover : leftovers.toList()) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+    }
+
+    /** Writes a range of an upload into place
+     * @param uploadId the id the client chose for the upload
+     * @param name the name under which the file will be stored
+     * @param total the size of the complete file
+     * @param offset the position of the range in the file
+     * @param content buffer holding the range
+     * @param length number of bytes in the range
+     * @return the complete upload once all ranges were received, null otherwise
+     * @throws IllegalArgumentException if the range does not match the upload */
+    Completed write(String uploadId, String name, long total, long offset, byte[] content, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > total) {
+            throw new IllegalArgumentException("Range out of bounds for upload " + uploadId);
+        }
+        if (!uploads.containsKey(uploadId)) {
+            discardStale();
+        }
+        PartialUpload upload = uploads.computeIfAbsent(uploadId, id -> open(id, name, total));
+        if (upload == null) {
+            throw new IOException("Could not create temporary file for upload " + uploadId);
+        }
+        if (!upload.name().equals(name) || upload.total() != total) {
+            throw new IllegalArgumentException("Range does not match upload " + uploadId);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content, 0, length);
+        while (buffer.hasRemaining()) {
+            upload.channel().write(buffer, offset + buffer.position());
+        }
+        upload.lastWrite().set(System.currentTimeMillis());
+        digest(upload, offset, content, length);
+        if (upload.offsets().add(offset) && upload.received().addAndGet(length) == total
+                && uploads.remove(uploadId, upload)) {
+            upload.channel().force(false);
+            upload.channel().close();
+            if (upload.digested().get() != total) {
+                Files.deleteIfExists(upload.file());
+                throw new IOException("Upload " + uploadId + " has overlapping ranges");
+            }
+            String checksum = HexFormat.of().formatHex(upload.digest().digest());
+            return new Completed(upload.file(), new FileMetadata(total, System.currentTimeMillis(), checksum));
+        }
+        return null;
+    }
+
+    /** Adds a range that was written to the checksum of an upload,
+     * followed by any ranges that were written ahead of it and now continue the digested prefix */
+    private void digest(PartialUpload upload, long offset, byte[] content, int length) throws IOException {
+        synchronized (upload) {
+            long digested = upload.digested().get();
+            if (offset > digested) {
+                upload.undigested().put(offset, length);
+                return;
+            } else if (offset < digested) {
+                return;
+            }
+            upload.digest().update(content, 0, length);
+            digested += length;
+            Map.Entry<Long, Integer> next;
+            while ((next = upload.undigested().pollFirstEntry()) != null && next.getKey() <= digested) {
+                if (next.getKey() < digested) { continue; }
+                ByteBuffer buffer = ByteBuffer.allocate(next.getValue());
+                while (buffer.hasRemaining()) {
+                    if (upload.channel().read(buffer, next.getKey() + buffer.position()) < 0) {
+                        throw new IOException("Upload file is shorter than its ranges: " + upload.file());
+                    }
+                }
+                upload.digest().update(buffer.flip());
+                digested += next.getValue();
+            }
+            if (next != null && next.getKey() > digested) {
+                upload.undigested().put(next.getKey(), next.getValue());
+            }
+            upload.digested().set(digested);
+        }
+    }
+
+    /** Starts a new upload with an empty temporary file */
+    private PartialUpload open(String uploadId, String name, long total) {
+        try {
+            Path file = Files.createFile(directory.resolve("upload-" + UUID.randomUUID() + ".part"));
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            logger.info(String.format("Started upload %s of %s (%d bytes)", uploadId, name, total));
+            return new PartialUpload(name, total, file, channel, ConcurrentHashMap.newKeySet(),
+                    new AtomicLong(), new AtomicLong(System.currentTimeMillis()),
+                    FileMetadata.newDigest(), new AtomicLong(), new TreeMap<>());
+        } catch (IOException e) {
+            logger.warning("Could not create temporary file for upload " + uploadId);
+            return null;
+        }
+    }
+
+    private void discardStale() {
+        long now = System.currentTimeMillis();
+        uploads.forEach((uploadId, upload) -> {
+            if (now - upload.lastWrite().get() > STALE_MILLIS && uploads.remove(uploadId, upload)) {
+                try {
+                    upload.channel().close();
+                    Files.deleteIfExists(upload.file());
+                } catch (IOException e) {
+                    logger.warning("Could not delete temporary file of upload " + uploadId);
+                }
+                logger.info("Discarded stale upload " + uploadId);
+            }
+        });
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FairSchedulerTest {
+    private final List<String> order = new ArrayList<>();
+
+    @Test
+    void clientsTakeTurnsByWeight() throws Exception {
+        System.setProperty("fileserver.weight.heavy", "3");
+        try {
+            List<String> order = runQueued(scheduler -> {
+                List<CompletableFuture<?>> tasks = new ArrayList<>();
+                for (int i = 0; i < 6; i++) {
+                    tasks.add(submit(scheduler, "heavy", FairScheduler.Priority.INTERACTIVE, "H"));
+                }
+                for (int i = 0; i < 3; i++) {
+                    tasks.add(submit(scheduler, "light", FairScheduler.Priority.INTERACTIVE, "L"));
+                }
+                return tasks;
+            });
+
+            assertEquals(List.of("H", "H", "H", "L", "H", "H", "H", "L", "L"), order);
+        } finally {
+            System.clearProperty("fileserver.weight.heavy");
+        }
+    }
+
+    @Test
+    void everyFourthTaskIsBulkWhileBulkTasksAreWaiting() throws Exception {
+        long bulkExecuted = Metrics.get("scheduler.bulk.executed");
+        List<String> order = runQueued(scheduler -> {
+            List<CompletableFuture<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                tasks.add(submit(scheduler, "a", FairScheduler.Priority.INTERACTIVE, "I"));
+            }
+            for (int i = 0; i < 2; i++) {
+                tasks.add(submit(scheduler, "a", FairScheduler.Priority.BULK, "B"));
+            }
+            return tasks;
+        });
+
+        assertEquals(List.of("I", "I", "I", "B", "I", "I", "I", "B", "I", "I"), order);
+        assertEquals(bulkExecuted + 3, Metrics.get("scheduler.bulk.executed"));
+    }
+
+    /** Tasks submitted by a test, which record their label in the order they run */
+    private interface Submissions {
+        List<CompletableFuture<?>> submit(FairScheduler scheduler) throws Exception;
+    }
+
+    /** Queues the submitted tasks while the only worker is busy, so that they are all ordered by the scheduler
+     * @return the labels of the tasks in the order they ran */
+    private List<String> runQueued(Submissions submissions) throws Exception {
+        FairScheduler scheduler = new FairScheduler(1);
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Void> blocker = scheduler.submit("blocker", FairScheduler.Priority.BULK, () -> {
+                started.countDown();
+                release.await();
+                return null;
+            });
+            started.await();
+            List<CompletableFuture<?>> tasks = submissions.submit(scheduler);
+            release.countDown();
+            blocker.get();
+            for (CompletableFuture<?> task : tasks) {
+                task.get();
+            }
+            synchronized (order) {
+                return List.copyOf(order);
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private CompletableFuture<?> submit(FairScheduler scheduler, String clientId, FairScheduler.Priority priority,
+                                        String label) {
+        return scheduler.submit(clientId, priority, () -> {
+            synchronized (order) {
+                order.add(label);
+            }
+            return null;
+        });
+    }
+}
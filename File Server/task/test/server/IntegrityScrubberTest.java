@@ -0,0 +1,85 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IntegrityScrubberTest {
+    private static final long SEGMENT_SIZE = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void corruptedFilesAreQuarantined() throws InterruptedException, IOException {
+        Storage storage = open();
+        save(storage, "loose.txt", 100_000);
+        save(storage, "intact.txt", 100_000);
+        byte[] corrupted = new byte[100_000];
+        corrupted[50_000] = 1;
+        Files.write(directory.resolve("loose.txt"), corrupted);
+        long mismatches = Metrics.get("scrub.mismatches");
+
+        scrub(storage);
+
+        assertNull(storage.getFile(byName("loose.txt")));
+        assertNotNull(storage.getFile(byName("intact.txt")));
+        assertEquals(mismatches + 1, Metrics.get("scrub.mismatches"));
+    }
+
+    @Test
+    void missingFilesAreQuarantined() throws InterruptedException, IOException {
+        Storage storage = open();
+        save(storage, "loose.txt", 100_000);
+        Files.delete(directory.resolve("loose.txt"));
+
+        scrub(storage);
+
+        assertNull(storage.getFile(byName("loose.txt")));
+        assertTrue(storage.entries().isEmpty());
+    }
+
+    @Test
+    void metadataOfRecoveredFilesIsRecorded() throws InterruptedException {
+        save(open(), "packed.txt", 10);
+        Storage restarted = open();
+        assertNull(restarted.getRecordedMetadata("packed.txt"));
+
+        scrub(restarted);
+
+        FileMetadata metadata = restarted.getRecordedMetadata("packed.txt");
+        assertEquals(10, metadata.size());
+        assertEquals(FileMetadata.of(new byte[10], 10).checksum(), metadata.checksum());
+        assertNotNull(restarted.getFile(byName("packed.txt")));
+    }
+
+    private static void scrub(Storage storage) throws InterruptedException {
+        FairScheduler scheduler = new FairScheduler(1);
+        try {
+            new IntegrityScrubber(storage, scheduler).scrubAll();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    private Storage open() throws InterruptedException {
+        Storage storage = Storage.open(directory, SEGMENT_SIZE);
+        while (storage.isRecovering()) {
+            Thread.sleep(10);
+        }
+        return storage;
+    }
+
+    private static void save(Storage storage, String name, int length) {
+        assertTrue(storage.saveFile(name, length, new byte[length]) >= 0, "Could not save " + name);
+    }
+
+    private static FileIdentifier byName(String name) {
+        return new FileIdentifier(FileIdentifier.Type.BY_NAME, name);
+    }
+}
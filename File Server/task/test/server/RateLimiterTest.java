@@ -0,0 +1,46 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    private static final int MAX_IDS_PER_ADDRESS = 16;
+
+    @Test
+    void chosenIdsAreQualifiedByTheAddressThatChoseThem() {
+        RateLimiter limiter = new RateLimiter();
+
+        assertEquals("10.0.0.1", limiter.clientId("10.0.0.1", null));
+        assertEquals("10.0.0.1/alice", limiter.clientId("10.0.0.1", "alice"));
+        assertEquals("10.0.0.2/alice", limiter.clientId("10.0.0.2", "alice"));
+        assertEquals("10.0.0.2/10.0.0.1", limiter.clientId("10.0.0.2", "10.0.0.1"));
+    }
+
+    @Test
+    void addressFallsBackToItselfOnceItUsesTooManyIds() {
+        RateLimiter limiter = new RateLimiter();
+        long rejected = Metrics.get("throttle.clientIds.rejected");
+        for (int i = 0; i < MAX_IDS_PER_ADDRESS; i++) {
+            assertEquals("10.0.0.1/" + i, limiter.clientId("10.0.0.1", String.valueOf(i)));
+        }
+
+        assertEquals("10.0.0.1", limiter.clientId("10.0.0.1", "one-too-many"));
+        assertEquals("10.0.0.1/0", limiter.clientId("10.0.0.1", "0"));
+        assertEquals("10.0.0.2/one-too-many", limiter.clientId("10.0.0.2", "one-too-many"));
+        assertEquals(rejected + 1, Metrics.get("throttle.clientIds.rejected"));
+    }
+
+    @Test
+    void idsOfIdleClientsAreFreed() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(TimeUnit.MILLISECONDS.toNanos(20));
+        for (int i = 0; i < MAX_IDS_PER_ADDRESS; i++) {
+            limiter.clientId("10.0.0.1", String.valueOf(i));
+        }
+        Thread.sleep(50);
+
+        assertEquals("10.0.0.1/another", limiter.clientId("10.0.0.1", "another"));
+    }
+}
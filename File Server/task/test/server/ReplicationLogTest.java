@@ -0,0 +1,60 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationLogTest {
+    private static final int CAPACITY = 10_000;
+
+    @Test
+    void changesFollowingASequenceNumberAreReturnedInOrder() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog();
+        log.record(ReplicationLog.Kind.PUT, 1, "a.txt");
+        log.record(ReplicationLog.Kind.PUT, 2, "b.txt");
+        log.record(ReplicationLog.Kind.DELETE, 1, "a.txt");
+
+        List<ReplicationLog.Change> changes = log.after(1, 0);
+
+        assertEquals(List.of(new ReplicationLog.Change(2, ReplicationLog.Kind.PUT, 2, "b.txt"),
+                new ReplicationLog.Change(3, ReplicationLog.Kind.DELETE, 1, "a.txt")), changes);
+        assertEquals(3, log.head());
+    }
+
+    @Test
+    void followerThatIsUpToDateWaitsForTheNextChange() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog();
+        log.record(ReplicationLog.Kind.PUT, 1, "a.txt");
+        assertTrue(log.after(1, 10).isEmpty());
+
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            log.record(ReplicationLog.Kind.PUT, 2, "b.txt");
+        });
+        writer.start();
+        List<ReplicationLog.Change> changes = log.after(1, 10_000);
+        writer.join();
+
+        assertEquals(1, changes.size());
+        assertEquals("b.txt", changes.get(0).name());
+    }
+
+    @Test
+    void changesThatLeftTheLogAreNotReturned() throws InterruptedException {
+        ReplicationLog log = new ReplicationLog();
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            log.record(ReplicationLog.Kind.PUT, i, i + ".txt");
+        }
+
+        assertNull(log.after(0, 0));
+        assertNull(log.after(log.head() + 1, 0));
+        assertEquals(List.of(new ReplicationLog.Change(log.head(), ReplicationLog.Kind.PUT, CAPACITY + 1,
+                (CAPACITY + 1) + ".txt")), log.after(log.head() - 1, 0));
+    }
+}
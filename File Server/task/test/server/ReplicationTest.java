@@ -0,0 +1,85 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationTest {
+    private static final long SEGMENT_SIZE = 100;
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    @TempDir
+    Path primaryDirectory;
+    @TempDir
+    Path followerDirectory;
+
+    @Test
+    void followerReceivesSnapshotAndLaterChangesUnderThePrimaryIds() throws Exception {
+        Storage primary = open(primaryDirectory);
+        int packed = save(primary, "packed.txt", 10);
+        int loose = save(primary, "loose.txt", 100_000);
+        int port = freePort();
+        new ReplicationPrimary(primary, primary.enableReplication(), port).start();
+        Storage follower = open(followerDirectory);
+        new ReplicationFollower(follower, new InetSocketAddress(Server.ADDRESS, port)).start();
+
+        await(() -> follower.entries().size() == 2);
+        assertReplicated(primary, follower, packed, "packed.txt");
+        assertReplicated(primary, follower, loose, "loose.txt");
+
+        assertTrue(primary.deleteFile(byId(packed)));
+        int added = save(primary, "added.txt", 1000);
+
+        await(() -> follower.getFile(byId(added)) != null && follower.getFile(byId(packed)) == null);
+        assertReplicated(primary, follower, added, "added.txt");
+        assertEquals(2, follower.entries().size());
+    }
+
+    private static void assertReplicated(Storage primary, Storage follower, int id, String name) {
+        StoredContent replica = follower.getFile(byId(id));
+        assertNotNull(replica, name + " was not replicated");
+        assertEquals(name, replica.name());
+        assertEquals(primary.getFile(byId(id)).length(), replica.length());
+        assertEquals(primary.getRecordedMetadata(name), follower.getRecordedMetadata(name));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Follower did not catch up in time");
+            Thread.sleep(20);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName(Server.ADDRESS))) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Storage open(Path directory) throws InterruptedException {
+        Storage storage = Storage.open(directory, SEGMENT_SIZE);
+        while (storage.isRecovering()) {
+            Thread.sleep(10);
+        }
+        return storage;
+    }
+
+    private static int save(Storage storage, String name, int length) {
+        int id = storage.saveFile(name, length, new byte[length]);
+        assertTrue(id >= 0, "Could not save " + name);
+        return id;
+    }
+
+    private static FileIdentifier byId(int id) {
+        return new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id));
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void appendedContentsCanBeReadBack() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 1024);
+        SegmentStore.Location first = segments.append("a.txt", bytes("first"), 5);
+        SegmentStore.Location second = segments.append("b.txt", bytes("second!"), 6);
+
+        assertEquals("first", read(segments.content("a.txt", first)));
+        assertEquals("second", read(segments.content("b.txt", second)));
+        assertEquals(first.offset() + 5 + SegmentStore.recordSize("b.txt", second) - 6, second.offset());
+    }
+
+    @Test
+    void scanReplaysRecordsAndTombstonesInOrder() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 1024);
+        SegmentStore.Location a = segments.append("a.txt", bytes("aaa"), 3);
+        segments.append("b.txt", bytes("bb"), 2);
+        segments.tombstone("a.txt", a);
+
+        List<String> records = new ArrayList<>();
+        segments.scan(0, (name, location) -> records.add(location == null ? "-" + name : name + "@" + location.offset()),
+                Long.MAX_VALUE);
+
+        assertEquals(List.of("a.txt@" + a.offset(), "b.txt@" + (a.offset() + SegmentStore.recordSize("b.txt", a)),
+                "-a.txt"), records);
+    }
+
+    @Test
+    void scanStopsAtTruncatedRecord() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 1024);
+        SegmentStore.Location a = segments.append("a.txt", bytes("aaa"), 3);
+        SegmentStore.Location b = segments.append("b.txt", bytes("bbbbbbbb"), 8);
+        truncate(directory.resolve("segment-000000.seg"), b.offset() + 4);
+
+        List<String> names = new ArrayList<>();
+        segments.scan(0, (name, location) -> names.add(name), Long.MAX_VALUE);
+
+        assertEquals(List.of("a.txt"), names);
+        assertTrue(segments.isValid(a));
+        assertFalse(segments.isValid(b));
+    }
+
+    @Test
+    void newSegmentIsStartedOnceTheActiveOneIsFull() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 10);
+        SegmentStore.Location a = segments.append("a.txt", bytes("0123456789"), 10);
+        SegmentStore.Location b = segments.append("b.txt", bytes("x"), 1);
+
+        assertEquals(0, a.segmentId());
+        assertEquals(1, b.segmentId());
+        assertEquals(1, segments.tail().segmentId());
+        assertEquals(Set.of(0, 1), segments.segmentIds());
+    }
+
+    @Test
+    void reopenedStoreAppendsToNewestSegment() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 20);
+        segments.append("a.txt", bytes("0123456789"), 10);
+        SegmentStore.Location b = segments.append("b.txt", bytes("x"), 1);
+        segments.sync();
+
+        SegmentStore reopened = new SegmentStore(directory, 20);
+        SegmentStore.Location c = reopened.append("c.txt", bytes("y"), 1);
+
+        assertEquals(1, b.segmentId());
+        assertEquals(b.segmentId(), c.segmentId());
+        assertEquals(b.offset() + SegmentStore.recordSize("c.txt", c), c.offset());
+        assertEquals("x", read(reopened.content("b.txt", b)));
+        assertEquals("y", read(reopened.content("c.txt", c)));
+    }
+
+    @Test
+    void relocateCopiesRecordToActiveSegment() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 20);
+        SegmentStore.Location a = segments.append("a.txt", bytes("0123456789"), 10);
+        segments.append("b.txt", bytes("x"), 1);
+
+        SegmentStore.Location relocated = segments.relocate("a.txt", a);
+
+        assertEquals(1, relocated.segmentId());
+        assertEquals("0123456789", read(segments.content("a.txt", relocated)));
+    }
+
+    @Test
+    void segmentsWithMostlyDeadRecordsAreCompactionCandidates() throws IOException {
+        SegmentStore segments = new SegmentStore(directory, 10);
+        SegmentStore.Location a = segments.append("a.txt", bytes("0123456789"), 10);
+        SegmentStore.Location b = segments.append("b.txt", bytes("x"), 1);
+        segments.initDeadBytes(Map.of(0, SegmentStore.recordSize("a.txt", a), 1, SegmentStore.recordSize("b.txt", b)));
+        assertEquals(List.of(), segments.compactionCandidates());
+
+        segments.tombstone("a.txt", a);
+        assertEquals(List.of(0), segments.compactionCandidates());
+
+        segments.retire(0);
+        assertEquals(List.of(), segments.compactionCandidates());
+        assertFalse(segments.isValid(a));
+        segments.deleteRetired();
+        assertFalse(Files.exists(directory.resolve("segment-000000.seg")));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String read(StoredContent content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.transferTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+}
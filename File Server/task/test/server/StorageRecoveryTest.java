@@ -0,0 +1,194 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageRecoveryTest {
+    private static final long SEGMENT_SIZE = 100;
+    private static final int ORPHANS = 5000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void deletedPackedFilesStayDeletedAfterCompactionAndRestart() throws InterruptedException {
+        Storage storage = open();
+        save(storage, "a.txt", 10);
+        save(storage, "d.txt", 1000);
+        save(storage, "b.txt", 200);
+        assertTrue(storage.deleteFile(byName("a.txt")));
+        assertTrue(storage.deleteFile(byName("b.txt")));
+        save(storage, "c.txt", 10);
+        storage.compactSegments();
+        storage.compactSegments();
+        storage.saveIndex();
+
+        Storage restarted = open();
+
+        assertNull(restarted.getFile(byName("a.txt")));
+        assertNull(restarted.getFile(byName("b.txt")));
+        assertNotNull(restarted.getFile(byName("c.txt")));
+        assertNotNull(restarted.getFile(byName("d.txt")));
+    }
+
+    @Test
+    void filesPackedAgainAfterDeleteSurviveCompactionAndRestart() throws InterruptedException {
+        Storage storage = open();
+        save(storage, "a.txt", 10);
+        save(storage, "d.txt", 1000);
+        save(storage, "b.txt", 200);
+        assertTrue(storage.deleteFile(byName("a.txt")));
+        assertTrue(storage.deleteFile(byName("b.txt")));
+        save(storage, "a.txt", 20);
+        storage.compactSegments();
+        storage.compactSegments();
+
+        Storage restarted = open();
+
+        assertEquals(20, restarted.getFile(byName("a.txt")).length());
+        assertNull(restarted.getFile(byName("b.txt")));
+    }
+
+    @Test
+    void idsAssignedAfterTheLastSavedIndexAreNotReused() throws InterruptedException {
+        Storage storage = open();
+        int saved = save(storage, "a.txt", 1000);
+        storage.saveIndex();
+        Storage crashed = open();
+        int lost = save(crashed, "b.txt", 1000);
+        assertTrue(crashed.deleteFile(byName("b.txt")));
+
+        Storage restarted = open();
+        int next = save(restarted, "c.txt", 1000);
+
+        assertEquals(saved + 1, lost);
+        assertNotEquals(lost, next);
+        assertNull(restarted.getFile(byId(lost)));
+        assertEquals("a.txt", restarted.getFile(byId(saved)).name());
+    }
+
+    @Test
+    void cleanRestartContinuesWithTheNextId() throws InterruptedException {
+        Storage storage = open();
+        int first = save(storage, "a.txt", 1000);
+        storage.saveIndex();
+
+        Storage restarted = open();
+
+        assertEquals(first + 1, save(restarted, "b.txt", 1000));
+    }
+
+    @Test
+    void packedFilesRecoveredWithoutIndexHaveUnknownModifiedTime() throws InterruptedException {
+        save(open(), "a.txt", 10);
+
+        FileMetadata metadata = open().getMetadata(byName("a.txt"));
+
+        assertEquals(10, metadata.size());
+        assertEquals(FileMetadata.UNKNOWN, metadata.modified());
+    }
+
+    @Test
+    void replacedReplicaSurvivesRestart() throws InterruptedException, IOException {
+        Storage storage = open();
+        assertTrue(storage.saveReplica(5, "a.txt", FileMetadata.of(new byte[10], 10), received(storage, 10)));
+        assertTrue(storage.saveReplica(5, "a.txt", FileMetadata.of(new byte[20], 20), received(storage, 20)));
+
+        Storage restarted = open();
+
+        assertEquals(20, restarted.getFile(byName("a.txt")).length());
+    }
+
+    @Test
+    void filesDeletedDuringRecoveryStayDeleted() throws InterruptedException, IOException {
+        Storage storage = open();
+        save(storage, "packed.txt", 10);
+        save(storage, "loose.txt", 100_000);
+        storage.saveIndex();
+        addOrphans(ORPHANS);
+
+        Storage restarted = Storage.open(directory, SEGMENT_SIZE);
+        assertTrue(restarted.isRecovering());
+        assertTrue(restarted.deleteFile(byName("packed.txt")));
+        assertTrue(restarted.deleteFile(byName("loose.txt")));
+        awaitRecovery(restarted);
+
+        assertNull(restarted.getFile(byName("packed.txt")));
+        assertNull(restarted.getFile(byName("loose.txt")));
+        assertNotNull(restarted.getFile(byName("orphan-0.txt")));
+    }
+
+    @Test
+    void filesRewrittenDuringRecoveryAreKept() throws InterruptedException, IOException {
+        Storage storage = open();
+        int id = save(storage, "loose.txt", 100_000);
+        storage.saveIndex();
+        addOrphans(ORPHANS);
+
+        Storage restarted = Storage.open(directory, SEGMENT_SIZE);
+        assertTrue(restarted.saveReplica(id, "loose.txt", FileMetadata.of(new byte[100_000], 100_000),
+                received(restarted, 100_000)));
+        awaitRecovery(restarted);
+
+        assertNotNull(restarted.getFile(byId(id)));
+    }
+
+    @Test
+    void filesModifiedInTheFutureAreKept() throws InterruptedException, IOException {
+        Storage storage = open();
+        save(storage, "loose.txt", 100_000);
+        storage.saveIndex();
+        Files.setLastModifiedTime(directory.resolve("loose.txt"),
+                FileTime.fromMillis(System.currentTimeMillis() + 3_600_000));
+
+        Storage restarted = open();
+
+        assertNotNull(restarted.getFile(byName("loose.txt")));
+    }
+
+    /** Opens the storage like a server restart would, and waits for recovery to finish */
+    private Storage open() throws InterruptedException {
+        Storage storage = Storage.open(directory, SEGMENT_SIZE);
+        awaitRecovery(storage);
+        return storage;
+    }
+
+    private static void awaitRecovery(Storage storage) throws InterruptedException {
+        while (storage.isRecovering()) {
+            Thread.sleep(10);
+        }
+    }
+
+    /** Writes files the index doesn't know, which keep recovery busy for a while */
+    private void addOrphans(int count) throws IOException {
+        FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+        for (int i = 0; i < count; i++) {
+            Files.setLastModifiedTime(Files.write(directory.resolve("orphan-" + i + ".txt"), new byte[1]), past);
+        }
+    }
+
+    private static int save(Storage storage, String name, int length) {
+        int id = storage.saveFile(name, length, new byte[length]);
+        assertTrue(id >= 0, "Could not save " + name);
+        return id;
+    }
+
+    private static Path received(Storage storage, int length) throws IOException {
+        return Files.write(storage.createReplicaFile(), new byte[length]);
+    }
+
+    private static FileIdentifier byName(String name) {
+        return new FileIdentifier(FileIdentifier.Type.BY_NAME, name);
+    }
+
+    private static FileIdentifier byId(int id) {
+        return new FileIdentifier(FileIdentifier.Type.BY_ID, String.valueOf(id));
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageTest {
+    private static final int WRITERS = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void concurrentPackedSavesOfOneNameStoreItOnce() throws Exception {
+        assertEquals(1, saveConcurrently("a.txt", 10));
+    }
+
+    @Test
+    void concurrentLooseSavesOfOneNameStoreItOnce() throws Exception {
+        assertEquals(1, saveConcurrently("a.txt", 100_000));
+    }
+
+    @Test
+    void concurrentReadersOfAFileWithoutMetadataShareOneComputation() throws Exception {
+        save(Storage.open(directory, 1024 * 1024), "a.txt", 10_000_000);
+        Storage restarted = Storage.open(directory, 1024 * 1024);
+        while (restarted.isRecovering()) {
+            Thread.sleep(10);
+        }
+        FileIdentifier identifier = new FileIdentifier(FileIdentifier.Type.BY_NAME, "a.txt");
+        ExecutorService readers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<FileMetadata>> results = new ArrayList<>();
+            for (int i = 0; i < WRITERS; i++) {
+                results.add(readers.submit(() -> {
+                    start.await();
+                    return restarted.getMetadata(identifier);
+                }));
+            }
+            start.countDown();
+            FileMetadata first = results.get(0).get();
+            assertEquals(10_000_000, first.size());
+            for (Future<FileMetadata> result : results) {
+                assertSame(first, result.get());
+            }
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private static void save(Storage storage, String name, int length) {
+        assertTrue(storage.saveFile(name, length, new byte[length]) >= 0, "Could not save " + name);
+    }
+
+    /** Saves the same name from several threads at once, many times over
+     * @return 1 if each name was saved exactly once, otherwise the number of saves of the first name that wasn't */
+    private long saveConcurrently(String name, int length) throws Exception {
+        Storage storage = Storage.open(directory, 1024 * 1024);
+        ExecutorService writers = Executors.newFixedThreadPool(WRITERS);
+        try {
+            for (int round = 0; round < 50; round++) {
+                String roundName = round + "-" + name;
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Integer>> ids = new ArrayList<>();
+                for (int i = 0; i < WRITERS; i++) {
+                    ids.add(writers.submit(() -> {
+                        start.await();
+                        return storage.saveFile(roundName, length, new byte[length]);
+                    }));
+                }
+                start.countDown();
+                long saved = 0;
+                for (Future<Integer> id : ids) {
+                    if (id.get() >= 0) { saved++; }
+                }
+                if (saved != 1) { return saved; }
+                assertNotNull(storage.getFile(new FileIdentifier(FileIdentifier.Type.BY_NAME, roundName)));
+            }
+            assertEquals(50, storage.entries().size());
+            return 1;
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burstWithinCapacityNeedsNoWait() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+
+        assertEquals(0, bucket.reserve(2, 0));
+        assertEquals(0, bucket.reserve(1, 0));
+    }
+
+    @Test
+    void reservationsBeyondTheTokensWaitInTheOrderTheyWereMade() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertEquals(0, bucket.reserve(1, 0));
+
+        long first = bucket.reserve(1, 10 * SECOND);
+        long second = bucket.reserve(1, 10 * SECOND);
+
+        assertTrue(first > SECOND / 2 && first <= SECOND, "first waits " + first);
+        assertTrue(second > first + SECOND / 2 && second <= 2 * SECOND, "second waits " + second);
+    }
+
+    @Test
+    void reservationIsRejectedIfTheWaitIsTooLong() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertEquals(0, bucket.reserve(1, 0));
+
+        assertEquals(-1, bucket.reserve(1, SECOND / 10));
+        assertEquals(-1, bucket.reserve(5, 2 * SECOND));
+        long wait = bucket.reserve(1, 10 * SECOND);
+        assertTrue(wait > SECOND / 2 && wait <= SECOND, "rejected reservations took tokens, waits " + wait);
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadAssemblerTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void rangesArrivingOutOfOrderAreAssembledWithTheirChecksum() throws IOException {
+        UploadAssembler uploads = new UploadAssembler(directory.resolve("uploads"));
+        byte[] content = new byte[1000];
+        Arrays.fill(content, 0, 500, (byte) 'a');
+        Arrays.fill(content, 500, 1000, (byte) 'b');
+
+        assertNull(write(uploads, content, 600, 400));
+        assertNull(write(uploads, content, 300, 300));
+        assertNull(write(uploads, content, 300, 300));
+        UploadAssembler.Completed completed = write(uploads, content, 0, 300);
+
+        assertNotNull(completed);
+        assertArrayEquals(content, Files.readAllBytes(completed.file()));
+        assertEquals(1000, completed.metadata().size());
+        assertEquals(FileMetadata.checksum(completed.file()), completed.metadata().checksum());
+    }
+
+    @Test
+    void rangeOutsideTheUploadIsRejected() throws IOException {
+        UploadAssembler uploads = new UploadAssembler(directory.resolve("uploads"));
+
+        assertThrows(IllegalArgumentException.class, () -> uploads.write("u", "a.txt", 10, 8, new byte[4], 4));
+    }
+
+    private static UploadAssembler.Completed write(UploadAssembler uploads, byte[] content, int offset, int length)
+            throws IOException {
+        return uploads.write("u", "a.txt", content.length, offset, Arrays.copyOfRange(content, offset, offset + length),
+                length);
+    }
+}